@@ -0,0 +1,69 @@
+package TSim;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import TSim.sim.HeadlessSimulator;
+
+/**
+ * Commands sent through TSimInterface and answered by the headless
+ * simulator, which is never started, so it replies at once and nothing
+ * moves. Measures the client's writer thread, the simulator's parsing of the
+ * command and the reader thread completing the reply.
+ *
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandRoundTripBenchmark {
+
+	private static final int PIPELINE_DEPTH = 8;
+
+	private static TSimInterface tsi;
+
+	@Setup
+	public void setup() throws IOException {
+		synchronized (CommandRoundTripBenchmark.class) {
+			if (tsi == null) {
+				HeadlessSimulator sim = new HeadlessSimulator("Lab1.map", HeadlessSimulator.Pace.FAST, 0);
+				tsi = TSimInterface.open(sim.getInputStream(), sim.getOutputStream(), 2);
+			}
+		}
+	}
+
+	@Benchmark
+	public void setSpeed() throws CommandException {
+		tsi.setSpeed(1, 0);
+	}
+
+	@Benchmark
+	public void setSwitch() throws CommandException {
+		tsi.setSwitch(17, 7, TSimInterface.SWITCH_LEFT);
+	}
+
+	/* PIPELINE_DEPTH commands in flight at once; the score is per batch. */
+	@Benchmark
+	public void setSpeedPipelined() throws InterruptedException, ExecutionException {
+		@SuppressWarnings("unchecked")
+		CompletableFuture<CommandStatus>[] replies = new CompletableFuture[PIPELINE_DEPTH];
+		for (int i = 0; i < PIPELINE_DEPTH; i++)
+			replies[i] = tsi.setSpeedAsync(1 + (i & 1), 0);
+		for (CompletableFuture<CommandStatus> reply : replies)
+			reply.get();
+	}
+
+	/* Two trains commanding at once, as Lab1 does. */
+	@Benchmark
+	@Threads(2)
+	public void setSpeedContended() throws CommandException {
+		tsi.setSpeed(1, 0);
+	}
+}
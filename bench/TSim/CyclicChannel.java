@@ -0,0 +1,46 @@
+package TSim;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Serves the same bytes over and over, so that a TSimStream reading from it
+ * never reaches the end of its input.
+ *
+ */
+
+final class CyclicChannel implements ReadableByteChannel {
+
+	private final byte[] data;
+	private int pos;
+
+	CyclicChannel(byte[] data) {
+		this.data = data;
+	}
+
+	/* Reads a recording of the messages tsim sent during a session. */
+	static byte[] recording(String path) throws IOException {
+		return Files.readAllBytes(Paths.get(path));
+	}
+
+	public int read(ByteBuffer dst) {
+		int n = 0;
+		while (dst.hasRemaining()) {
+			int k = Math.min(dst.remaining(), data.length - pos);
+			dst.put(data, pos, k);
+			pos = (pos + k) % data.length;
+			n += k;
+		}
+		return n;
+	}
+
+	public boolean isOpen() {
+		return true;
+	}
+
+	public void close() throws IOException {
+	}
+}
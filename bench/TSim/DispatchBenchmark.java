@@ -0,0 +1,59 @@
+package TSim;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The work the reading thread does per sensor event: parse it, find the
+ * train's channel and pass the event on, with the train taking it from the
+ * same thread so that no wakeups are measured. Sensor events cycle through
+ * all trains, so with many trains the channels no longer stay in cache.
+ * Stamping the event and recording its latency is part of the work.
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({ "2", "16", "128", "1024" })
+	public int trains;
+
+	private TSimStream stream;
+	private TrainChannel[] channels;
+	private final long[] drained = new long[16];
+
+	@Setup
+	public void setup() {
+		StringBuilder text = new StringBuilder();
+		for (int id = 1; id <= trains; id++)
+			text.append("Sensor ").append(id).append(' ').append(id % 20).append(' ').append(id % 15)
+					.append(" active\n");
+		stream = new TSimStream(new CyclicChannel(text.toString().getBytes(StandardCharsets.US_ASCII)));
+		channels = new TrainChannel[trains + 1];
+		for (int id = 1; id <= trains; id++)
+			channels[id] = new TrainChannel(256, new LatencyHistogram());
+	}
+
+	@Benchmark
+	public long dispatch() throws Exception {
+		long event = stream.readPacked();
+		TrainChannel channel = channels[PackedEvent.trainId(event)];
+		channel.put(event, System.nanoTime());
+		return channel.take();
+	}
+
+	@Benchmark
+	public int dispatchAndDrain() throws Exception {
+		long event = stream.readPacked();
+		TrainChannel channel = channels[PackedEvent.trainId(event)];
+		channel.put(event, System.nanoTime());
+		return channel.drain(drained);
+	}
+}
@@ -0,0 +1,38 @@
+package TSim;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing messages from tsim, replayed from a recording of a Lab1 session:
+ * sensor events and command replies in the order tsim sent them.
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TSimStreamBenchmark {
+
+	private TSimStream stream;
+
+	@Setup
+	public void setup() throws IOException {
+		stream = new TSimStream(new CyclicChannel(CyclicChannel.recording("bench/resources/lab1-session.tsim")));
+	}
+
+	@Benchmark
+	public TSimInformation read() throws UnparsableInputException {
+		return stream.read();
+	}
+
+	@Benchmark
+	public long readPacked() throws UnparsableInputException {
+		return stream.readPacked();
+	}
+}
@@ -0,0 +1,58 @@
+package trainspotting;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Two trains taking turns on one section, each reserving and releasing it as
+ * fast as it can, compared with a plain Semaphore.
+ *
+ */
+
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SectionHandoffBenchmark {
+
+	private final Section section = new Section("BENCH", 1);
+	private final Reservations.Holder trainA = new Reservations.Holder(1, 0);
+	private final Reservations.Holder trainB = new Reservations.Holder(2, 0);
+	private final Semaphore semaphore = new Semaphore(1);
+
+	@Benchmark
+	@Group("section")
+	@GroupThreads(1)
+	public void sectionTrainA() throws InterruptedException {
+		section.acquire(trainA);
+		section.release(trainA);
+	}
+
+	@Benchmark
+	@Group("section")
+	@GroupThreads(1)
+	public void sectionTrainB() throws InterruptedException {
+		section.acquire(trainB);
+		section.release(trainB);
+	}
+
+	@Benchmark
+	@Group("semaphore")
+	@GroupThreads(1)
+	public void semaphoreTrainA() throws InterruptedException {
+		semaphore.acquire();
+		semaphore.release();
+	}
+
+	@Benchmark
+	@Group("semaphore")
+	@GroupThreads(1)
+	public void semaphoreTrainB() throws InterruptedException {
+		semaphore.acquire();
+		semaphore.release();
+	}
+}
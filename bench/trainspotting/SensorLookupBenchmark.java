@@ -0,0 +1,51 @@
+package trainspotting;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import TSim.PackedEvent;
+import TSim.SensorEvent;
+import TSim.map.TrackMap;
+import TSim.map.TrackMapParser;
+
+/**
+ * Finding what a train does at a sensor: the sensor number from the event's
+ * coordinates, then the steps from the rules, for every sensor of Lab1.map in
+ * turn.
+ *
+ */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorLookupBenchmark {
+
+	private TrackMap map;
+	private Rules rules;
+	private long[] events;
+	private int next;
+
+	@Setup
+	public void setup() throws IOException {
+		map = TrackMapParser.load("Lab1.map");
+		rules = Rules.forMap("Lab1.map", map);
+		events = new long[map.getSensorCount()];
+		for (int i = 0; i < events.length; i++) {
+			int tile = map.sensorTile(i);
+			events[i] = PackedEvent.sensor(1, map.tileX(tile), map.tileY(tile), SensorEvent.ACTIVE);
+		}
+	}
+
+	@Benchmark
+	public Step[] lookup() {
+		long event = events[next];
+		next = (next + 1) % events.length;
+		int sensor = map.sensorAt(PackedEvent.xPos(event), PackedEvent.yPos(event));
+		return rules.steps(sensor, (next & 1) == 0 ? Lab1.Direction.NORTH : Lab1.Direction.SOUTH);
+	}
+}
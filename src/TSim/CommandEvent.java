@@ -0,0 +1,79 @@
+package TSim;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A Flight Recorder event for each command answered by tsim, committed by the
+ * thread reading the reply. The thread that sent the command and the time
+ * from queueing it to the reply are recorded as fields.
+ *
+ */
+
+@Name("TSim.Command")
+@Label("TSim Command")
+@Category("TSim")
+@Description("A command sent to tsim and its reply")
+@StackTrace(false)
+final class CommandEvent extends jdk.jfr.Event {
+
+	@Label("Command")
+	String command;
+
+	@Label("Train Id")
+	@Description("The train of a SetSpeed command, 0 for SetSwitch")
+	int trainId;
+
+	@Label("Value")
+	@Description("The speed of a SetSpeed command, the direction of a SetSwitch command")
+	int value;
+
+	@Label("X")
+	int xPos;
+
+	@Label("Y")
+	int yPos;
+
+	@Label("Status")
+	String status;
+
+	@Label("Round Trip")
+	@Timespan(Timespan.NANOSECONDS)
+	long roundTrip;
+
+	@Label("Sender")
+	Thread sender;
+
+	private static final EventType TYPE = EventType.getEventType(CommandEvent.class);
+
+	/*
+	 * Commits the event for a command answered at replyNanos, unless
+	 * recording is off, in which case no event is created.
+	 */
+	static void commit(CommandWriter.Command cmd, CommandStatus status, long replyNanos) {
+		if (!TYPE.isEnabled())
+			return;
+		CommandEvent event = new CommandEvent();
+		if (!event.shouldCommit())
+			return;
+		if (cmd.kind == CommandWriter.SET_SPEED) {
+			event.command = "SetSpeed";
+			event.trainId = cmd.a;
+			event.value = cmd.b;
+		} else {
+			event.command = "SetSwitch";
+			event.xPos = cmd.a;
+			event.yPos = cmd.b;
+			event.value = cmd.c;
+		}
+		event.status = status.toString();
+		event.roundTrip = replyNanos - cmd.submitNanos;
+		event.sender = cmd.sender;
+		event.commit();
+	}
+}
@@ -15,7 +15,14 @@ public class CommandStatus implements TSimInformation {
 	public static final int NO_SUCH_POS = 0x05;
 	public static final int TRAIN_ON_SWITCH = 0x06;
 
-	protected int status;
+	protected final int status; // shared instances must not change
+
+	private static final CommandStatus[] SHARED = new CommandStatus[TRAIN_ON_SWITCH + 1];
+
+	static {
+		for (int i = OK; i <= TRAIN_ON_SWITCH; i++)
+			SHARED[i] = new CommandStatus(i);
+	}
 
 	/**
 	 * Creates a new CommandStatus message.
@@ -29,6 +36,22 @@ public class CommandStatus implements TSimInformation {
 		this.status = status;
 	}
 
+	/**
+	 * Returns the shared CommandStatus for one of the six known statuses, or a
+	 * new one for any other value.
+	 *
+	 * @param status
+	 *            the status of the command.
+	 * @return a CommandStatus with the given status.
+	 *
+	 */
+
+	public static CommandStatus valueOf(int status) {
+		if (status >= OK && status <= TRAIN_ON_SWITCH)
+			return SHARED[status];
+		return new CommandStatus(status);
+	}
+
 	/**
 	 * Returns the status of the command.
 	 *
@@ -0,0 +1,306 @@
+package TSim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the commands of all trains to TSim from one thread. Commands are
+ * handed over through a lock-free queue, encoded as ASCII into a reusable
+ * buffer and flushed once the queue is empty, so commands issued on the same
+ * tick share a single write to the pipe.
+ *
+ * The counters describe the batches written so far and may be read from any
+ * thread.
+ *
+ */
+
+public final class CommandWriter {
+
+	static final int SET_SPEED = 0x01;
+	static final int SET_SWITCH = 0x02;
+
+	private static final byte[] SET_SPEED_BYTES = bytes("SetSpeed ");
+	private static final byte[] SET_SWITCH_BYTES = bytes("SetSwitch ");
+	private static final byte[] LEFT_BYTES = bytes(" LeftSwitch");
+	private static final byte[] RIGHT_BYTES = bytes(" RightSwitch");
+	private static final int MAX_COMMAND_LENGTH = 64;
+
+	private final OutputStream out;
+	private final PrintWriter err;
+	private final Queue<Command> pendingCommands;
+	private final ConcurrentLinkedQueue<Command> queue = new ConcurrentLinkedQueue<Command>();
+	private final AtomicInteger inFlight = new AtomicInteger(); // submitted and not completed yet
+	private final byte[] buf = new byte[8192];
+	private int len;
+	private int batchSize;
+
+	private final Thread thread;
+	private volatile boolean sleeping;
+	private volatile boolean closed;
+	private volatile DebugLog debugLog; // null unless debugging
+	private volatile ProtocolRecorder recorder;
+
+	private volatile long batches;
+	private volatile long commands;
+	private volatile long maxBatchSize;
+	private volatile long flushNanos;
+	private volatile long maxFlushNanos;
+
+	/*
+	 * A queued command, which is also the future completed by its reply.
+	 * submitNanos and sender are taken when the command is queued.
+	 */
+	static final class Command extends CompletableFuture<CommandStatus> {
+		final int kind;
+		final int a, b, c;
+		final long submitNanos = System.nanoTime();
+		final Thread sender = Thread.currentThread();
+
+		Command(int kind, int a, int b, int c) {
+			this.kind = kind;
+			this.a = a;
+			this.b = b;
+			this.c = c;
+		}
+	}
+
+	/*
+	 * Creates a writer for the given stream and starts its thread, named as
+	 * given. Every command written is appended to pendingCommands first.
+	 */
+	CommandWriter(OutputStream out, Queue<Command> pendingCommands, PrintWriter err, String name) {
+		this.out = out;
+		this.pendingCommands = pendingCommands;
+		this.err = err;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	void setDebugLog(DebugLog debugLog) {
+		this.debugLog = debugLog;
+	}
+
+	void setRecorder(ProtocolRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/*
+	 * Queues a command; SET_SPEED takes train id and speed, SET_SWITCH x, y
+	 * and direction.
+	 */
+	CompletableFuture<CommandStatus> submit(int kind, int a, int b, int c) {
+		Command cmd = new Command(kind, a, b, c);
+		inFlight.incrementAndGet();
+		queue.offer(cmd);
+		if (closed)
+			failQueued(); // the thread may have gone already
+		else if (sleeping)
+			LockSupport.unpark(thread);
+		return cmd;
+	}
+
+	/*
+	 * Stops the thread once the connection to TSim has ended. Commands not
+	 * written yet, or submitted from now on, fail.
+	 */
+	void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+	}
+
+	/*
+	 * Called once TSim has replied to the command at the head of
+	 * pendingCommands, before it is completed.
+	 */
+	void answered() {
+		inFlight.decrementAndGet();
+	}
+
+	/*
+	 * Returns the number of commands submitted that have neither been
+	 * answered nor failed yet.
+	 */
+	int inFlight() {
+		return inFlight.get();
+	}
+
+	private void failQueued() {
+		Command cmd;
+		while ((cmd = queue.poll()) != null)
+			fail(cmd, "the connection to tsim has ended");
+	}
+
+	private void fail(Command cmd, String message) {
+		inFlight.decrementAndGet();
+		cmd.completeExceptionally(new CommandException(message));
+	}
+
+	private void writeLoop() {
+		while (true) {
+			if (closed) {
+				failQueued();
+				Command reply; // written, but never to be answered
+				while ((reply = pendingCommands.poll()) != null)
+					fail(reply, "the connection to tsim has ended");
+				return;
+			}
+			Command cmd = queue.poll();
+			if (cmd == null) {
+				if (len > 0)
+					flush();
+				sleeping = true;
+				if (queue.isEmpty() && !closed)
+					LockSupport.park(this);
+				sleeping = false;
+				continue;
+			}
+
+			pendingCommands.offer(cmd);
+			ProtocolRecorder r = recorder;
+			if (r != null)
+				r.sent(cmd.kind, cmd.a, cmd.b, cmd.c, System.nanoTime());
+			encode(cmd);
+			batchSize++;
+			DebugLog log = debugLog;
+			if (log != null)
+				log.log(ProtocolRecorder.packCommand(cmd.kind, cmd.a, cmd.b, cmd.c));
+			if (len > buf.length - MAX_COMMAND_LENGTH)
+				flush();
+		}
+	}
+
+	private void flush() {
+		long start = System.nanoTime();
+		try {
+			out.write(buf, 0, len);
+			out.flush();
+		} catch (IOException e) {
+			err.println(e.getMessage());
+			/* the pipe is broken; nothing pending will be answered */
+			Command reply;
+			while ((reply = pendingCommands.poll()) != null)
+				fail(reply, e.getMessage());
+		}
+		long elapsed = System.nanoTime() - start;
+
+		batches++;
+		commands += batchSize;
+		flushNanos += elapsed;
+		if (batchSize > maxBatchSize)
+			maxBatchSize = batchSize;
+		if (elapsed > maxFlushNanos)
+			maxFlushNanos = elapsed;
+		len = 0;
+		batchSize = 0;
+	}
+
+	private void encode(Command cmd) {
+		if (cmd.kind == SET_SPEED) {
+			put(SET_SPEED_BYTES);
+			putInt(cmd.a);
+			buf[len++] = ' ';
+			putInt(cmd.b);
+		} else {
+			put(SET_SWITCH_BYTES);
+			putInt(cmd.a);
+			buf[len++] = ' ';
+			putInt(cmd.b);
+			put(cmd.c == TSimInterface.SWITCH_LEFT ? LEFT_BYTES : RIGHT_BYTES);
+		}
+		buf[len++] = '\n';
+	}
+
+	private void put(byte[] b) {
+		System.arraycopy(b, 0, buf, len, b.length);
+		len += b.length;
+	}
+
+	private void putInt(int value) {
+		long v = value;
+		if (v < 0) {
+			buf[len++] = '-';
+			v = -v;
+		}
+		int start = len;
+		do {
+			buf[len++] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while (v > 0);
+		for (int i = start, j = len - 1; i < j; i++, j--) {
+			byte t = buf[i];
+			buf[i] = buf[j];
+			buf[j] = t;
+		}
+	}
+
+	/**
+	 * Returns the number of flushes, i.e. writes to the pipe.
+	 */
+
+	public long getBatchCount() {
+		return batches;
+	}
+
+	/**
+	 * Returns the number of commands written.
+	 */
+
+	public long getCommandCount() {
+		return commands;
+	}
+
+	/**
+	 * Returns the largest number of commands written in one flush.
+	 */
+
+	public long getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * Returns the average number of commands written per flush.
+	 */
+
+	public double getAverageBatchSize() {
+		long b = batches;
+		return b == 0 ? 0 : (double) commands / b;
+	}
+
+	/**
+	 * Returns the total time spent writing and flushing, in nanoseconds.
+	 */
+
+	public long getFlushNanos() {
+		return flushNanos;
+	}
+
+	/**
+	 * Returns the longest time a single flush took, in nanoseconds.
+	 */
+
+	public long getMaxFlushNanos() {
+		return maxFlushNanos;
+	}
+
+	public String toString() {
+		return "commands " + commands + ", flushes " + batches + ", batch avg "
+				+ String.format("%.2f", getAverageBatchSize()) + " max " + maxBatchSize + ", flush avg "
+				+ (batches == 0 ? 0 : flushNanos / batches) + " ns max " + maxFlushNanos + " ns";
+	}
+}
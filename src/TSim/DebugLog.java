@@ -0,0 +1,131 @@
+package TSim;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The debug output of a TSimInterface. The threads talking to TSim only store
+ * each message, packed into a long as described in PackedEvent, into a
+ * preallocated ring; a background thread formats the messages and writes
+ * them, flushing whenever it has caught up. A slow stream thus no longer holds
+ * up the reading or writing thread. The background thread is never woken up
+ * but looks for new messages every POLL_NANOS, so logging a message costs no
+ * system call either.
+ *
+ * When the ring is full, a message is either dropped and counted, or the
+ * thread logging it waits for room, depending on the policy.
+ *
+ * Once the connection has ended, close prints what is left in the ring and
+ * stops the background thread; messages logged after that are dropped.
+ *
+ */
+
+final class DebugLog {
+
+	private static final long FULL_BACKOFF_NANOS = 100000;
+	private static final long POLL_NANOS = 1000000;
+
+	private final long[] entries;
+	private final AtomicLongArray published; // index + 1 of the entry in each slot, once written
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong(); // next index to claim
+	private volatile long head; // next index to print, written by the printing thread only
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean dropWhenFull;
+	private volatile boolean closed;
+
+	private final PrintWriter out;
+	private final Thread thread;
+
+	DebugLog(OutputStream out, int capacity, boolean dropWhenFull) {
+		entries = new long[Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1];
+		published = new AtomicLongArray(entries.length);
+		mask = entries.length - 1;
+		this.dropWhenFull = dropWhenFull;
+		this.out = new PrintWriter(out, false);
+		thread = new Thread(new Runnable() {
+			public void run() {
+				printLoop();
+			}
+		}, "tsim-debug");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	void setDropWhenFull(boolean dropWhenFull) {
+		this.dropWhenFull = dropWhenFull;
+	}
+
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/*
+	 * Prints the messages still in the ring and stops the background thread,
+	 * waiting for it to finish.
+	 */
+	void close() {
+		closed = true;
+		LockSupport.unpark(thread);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt(); // the thread finishes on its own
+		}
+	}
+
+	/*
+	 * Queues a message read from tsim, or a command packed by
+	 * ProtocolRecorder.packCommand. May be called from any thread.
+	 */
+	void log(long packed) {
+		long t;
+		while (true) {
+			t = tail.get();
+			if (closed) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (t - head >= entries.length) {
+				if (dropWhenFull) {
+					dropped.incrementAndGet();
+					return;
+				}
+				LockSupport.parkNanos(this, FULL_BACKOFF_NANOS);
+			} else if (tail.compareAndSet(t, t + 1))
+				break;
+		}
+		entries[(int) t & mask] = packed;
+		published.set((int) t & mask, t + 1);
+	}
+
+	private void printLoop() {
+		long h = head;
+		while (true) {
+			if (published.get((int) h & mask) != h + 1) {
+				out.flush();
+				if (closed && h == tail.get())
+					return; // drained
+				LockSupport.parkNanos(this, POLL_NANOS);
+				continue;
+			}
+			print(entries[(int) h & mask]);
+			head = ++h;
+		}
+	}
+
+	/*
+	 * Prints a command without a line break, so that its reply ends up on the
+	 * same line, and messages from tsim indented.
+	 */
+	private void print(long packed) {
+		int kind = PackedEvent.kind(packed);
+		if (kind == ProtocolRecorder.SET_SPEED_RECORD || kind == ProtocolRecorder.SET_SWITCH_RECORD)
+			out.print(ProtocolReplay.toProtocol(packed));
+		else
+			out.println("     " + PackedEvent.toString(packed));
+	}
+}
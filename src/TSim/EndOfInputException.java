@@ -0,0 +1,12 @@
+package TSim;
+
+/**
+ * Thrown by TSimStream when TSim has closed the stream it reads from.
+ *
+ */
+
+public class EndOfInputException extends UnparsableInputException {
+	public EndOfInputException() {
+		super("end of input from tsim");
+	}
+}
@@ -0,0 +1,169 @@
+package TSim;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds with logarithmic buckets, in the
+ * style of HdrHistogram: every power of two is split into 16 buckets, so a
+ * recorded value is known to within about 6%. Recording is a few atomic
+ * increments into fixed arrays and never locks or allocates, so it may be
+ * done from any number of threads at once.
+ *
+ */
+
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong max = new AtomicLong();
+
+	private static int bucket(long value) {
+		if (value < SUB_COUNT)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+	}
+
+	/* The smallest value that falls into the bucket. */
+	private static long lowestValue(int bucket) {
+		if (bucket < SUB_COUNT)
+			return bucket;
+		int exponent = bucket / SUB_COUNT + SUB_BITS - 1;
+		return (long) (SUB_COUNT + bucket % SUB_COUNT) << (exponent - SUB_BITS);
+	}
+
+	/**
+	 * Records a duration; negative durations are recorded as zero.
+	 *
+	 * @param nanos
+	 *            the duration in nanoseconds.
+	 */
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+		long m;
+		while (nanos < (m = min.get()) && !min.compareAndSet(m, nanos))
+			;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+			;
+	}
+
+	/**
+	 * Returns a copy of the values recorded so far.
+	 */
+
+	public Snapshot snapshot() {
+		return take(false);
+	}
+
+	/**
+	 * Returns a copy of the values recorded so far and starts over. Values
+	 * recorded while the snapshot is being taken end up in either the
+	 * snapshot or the emptied histogram, though the totals may be off by them.
+	 */
+
+	public Snapshot snapshotAndReset() {
+		return take(true);
+	}
+
+	public void reset() {
+		take(true);
+	}
+
+	private Snapshot take(boolean reset) {
+		long[] c = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++)
+			c[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+		if (reset)
+			return new Snapshot(c, count.getAndSet(0), sum.getAndSet(0), min.getAndSet(Long.MAX_VALUE),
+					max.getAndSet(0));
+		return new Snapshot(c, count.get(), sum.get(), min.get(), max.get());
+	}
+
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	/**
+	 * The values of a histogram at one point in time.
+	 */
+
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long min;
+		private final long max;
+
+		private Snapshot(long[] counts, long count, long sum, long min, long max) {
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.min = count == 0 ? 0 : min;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		public long getMin() {
+			return min;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * Returns the value below which the given percentage of the recorded
+		 * values fall, to within the precision of the buckets.
+		 *
+		 * @param percentile
+		 *            between 0 and 100.
+		 * @return the value in nanoseconds.
+		 */
+
+		public long getValueAtPercentile(double percentile) {
+			long total = 0;
+			for (long c : counts)
+				total += c;
+			if (total == 0)
+				return 0;
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(Math.max(lowestValue(i), min), max);
+			}
+			return max;
+		}
+
+		/**
+		 * Returns count, mean, median, 99th percentile and maximum, in
+		 * microseconds.
+		 */
+
+		public String toString() {
+			return String.format("n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus", count, getMean() / 1000,
+					getValueAtPercentile(50) / 1000.0, getValueAtPercentile(99) / 1000.0, max / 1000.0);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package TSim;
+
+/**
+ * Encodes messages from TSim in a single long so they can be passed around
+ * without allocating objects. The layout, from the most significant bit, is
+ * a 4 bit kind, a 20 bit train id, 16 bit x and y coordinates and an 8 bit
+ * status (the status of a CommandStatus or SensorEvent, or the event of a
+ * TrainEvent).
+ *
+ */
+
+public final class PackedEvent {
+
+	public static final int COMMAND_STATUS = 0x01;
+	public static final int SENSOR = 0x02;
+	public static final int TRAIN_EVENT = 0x03;
+
+	private PackedEvent() {
+	}
+
+	/**
+	 * Packs the given fields into a long.
+	 */
+
+	public static long pack(int kind, int trainId, int xPos, int yPos, int status) {
+		return ((long) kind << 60) | ((long) (trainId & 0xFFFFF) << 40) | ((long) (xPos & 0xFFFF) << 24)
+				| ((yPos & 0xFFFF) << 8) | (status & 0xFF);
+	}
+
+	public static long commandStatus(int status) {
+		return pack(COMMAND_STATUS, 0, 0, 0, status);
+	}
+
+	public static long sensor(int trainId, int xPos, int yPos, int status) {
+		return pack(SENSOR, trainId, xPos, yPos, status);
+	}
+
+	public static long trainEvent(int trainId, int event) {
+		return pack(TRAIN_EVENT, trainId, 0, 0, event);
+	}
+
+	public static int kind(long packed) {
+		return (int) (packed >>> 60);
+	}
+
+	public static int trainId(long packed) {
+		return (int) (packed >>> 40) & 0xFFFFF;
+	}
+
+	public static int xPos(long packed) {
+		return (int) (packed >>> 24) & 0xFFFF;
+	}
+
+	public static int yPos(long packed) {
+		return (int) (packed >>> 8) & 0xFFFF;
+	}
+
+	public static int status(long packed) {
+		return (int) packed & 0xFF;
+	}
+
+	/**
+	 * Returns true if both events concern the same position.
+	 */
+
+	public static boolean samePosition(long a, long b) {
+		return ((a ^ b) & 0xFFFFFFFF00L) == 0;
+	}
+
+	/**
+	 * Converts a packed message to its object form. CommandStatus messages
+	 * are shared instances.
+	 */
+
+	public static TSimInformation toInformation(long packed) {
+		switch (kind(packed)) {
+		case COMMAND_STATUS:
+			return CommandStatus.valueOf(status(packed));
+		case SENSOR:
+			return new SensorEvent(trainId(packed), xPos(packed), yPos(packed), status(packed));
+		case TRAIN_EVENT:
+			return new TrainEvent(trainId(packed), status(packed));
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Packs a message in its object form.
+	 */
+
+	public static long fromInformation(TSimInformation info) {
+		if (info instanceof CommandStatus)
+			return commandStatus(((CommandStatus) info).getStatus());
+		if (info instanceof SensorEvent) {
+			SensorEvent s = (SensorEvent) info;
+			return sensor(s.getTrainId(), s.getXpos(), s.getYpos(), s.getStatus());
+		}
+		if (info instanceof TrainEvent)
+			return trainEvent(((TrainEvent) info).getTrainId(), ((TrainEvent) info).getEvent());
+		if (info instanceof TrainErrorEvent)
+			return trainEvent(((TrainErrorEvent) info).getTrainId(), ((TrainErrorEvent) info).getEvent());
+		throw new IllegalArgumentException("unknown information " + info);
+	}
+
+	public static String toString(long packed) {
+		return String.valueOf(toInformation(packed));
+	}
+}
@@ -0,0 +1,129 @@
+package TSim;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the messages exchanged with TSim to a binary log, to be played back
+ * by ProtocolReplay. Every message read from TSim and every command written
+ * to it becomes a 16 byte record: the System.nanoTime() at which it was read
+ * or written, relative to the start of the recording, followed by the message
+ * packed as described in PackedEvent. Commands use the kinds SET_SPEED_RECORD
+ * (train id, speed as x) and SET_SWITCH_RECORD (x, y, direction as status).
+ *
+ * The log is written through a memory-mapped file, mapped a megabyte at a
+ * time, so recording a message is a few stores into memory and no system
+ * call. The pages end up in the file even if the program crashes, and a
+ * reader stops at the first empty record.
+ *
+ */
+
+public final class ProtocolRecorder implements Closeable {
+
+	static final long MAGIC = 0x5453494d4c4f4731L; // "TSIMLOG1"
+	static final int HEADER_SIZE = 16; // magic, start time in epoch milliseconds
+	static final int RECORD_SIZE = 16;
+	static final int SET_SPEED_RECORD = 0x09;
+	static final int SET_SWITCH_RECORD = 0x0A;
+
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long startNanos = System.nanoTime();
+	private MappedByteBuffer buf;
+	private long base; // file position of buf
+	private long records;
+	private boolean closed;
+
+	/**
+	 * Creates the log file, replacing any file of that name, and starts
+	 * recording once it is passed to TSimInterface.setRecorder.
+	 *
+	 * @param path
+	 *            the file to write.
+	 * @throws IOException
+	 *             if the file cannot be created.
+	 */
+
+	public ProtocolRecorder(String path) throws IOException {
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHUNK_SIZE);
+		buf.putLong(MAGIC);
+		buf.putLong(System.currentTimeMillis());
+	}
+
+	/*
+	 * Records a message read from tsim at nanos, packed as in PackedEvent.
+	 */
+	void received(long packed, long nanos) {
+		record(packed, nanos);
+	}
+
+	/*
+	 * Records a command written at nanos, with the arguments of
+	 * CommandWriter.submit.
+	 */
+	void sent(int kind, int a, int b, int c, long nanos) {
+		record(packCommand(kind, a, b, c), nanos);
+	}
+
+	/*
+	 * Packs a command, given by the arguments of CommandWriter.submit, the
+	 * way it is recorded.
+	 */
+	static long packCommand(int kind, int a, int b, int c) {
+		if (kind == CommandWriter.SET_SPEED)
+			return PackedEvent.pack(SET_SPEED_RECORD, a, b, 0, 0);
+		return PackedEvent.pack(SET_SWITCH_RECORD, 0, a, b, c);
+	}
+
+	private synchronized void record(long packed, long nanos) {
+		if (closed)
+			return;
+		if (buf.remaining() < RECORD_SIZE) {
+			try {
+				base += buf.position();
+				buf = channel.map(FileChannel.MapMode.READ_WRITE, base, CHUNK_SIZE);
+			} catch (IOException e) {
+				System.err.println("recording stopped: " + e.getMessage());
+				closed = true;
+				return;
+			}
+		}
+		buf.putLong(nanos - startNanos);
+		buf.putLong(packed);
+		records++;
+	}
+
+	/**
+	 * Returns the number of messages recorded so far.
+	 */
+
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Stops recording and cuts the file down to the records written.
+	 */
+
+	public synchronized void close() throws IOException {
+		if (closed && !channel.isOpen())
+			return;
+		closed = true;
+		try {
+			buf.force();
+			channel.truncate(base + buf.position());
+		} catch (IOException e) {
+			/* the file stays a chunk long; readers stop at the first empty record */
+		} finally {
+			file.close();
+		}
+	}
+}
@@ -0,0 +1,274 @@
+package TSim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a log written by ProtocolRecorder in place of TSim. The messages
+ * TSim sent are read from getInputStream as protocol text, so they pass
+ * through TSimStream and TSimInterface like the real thing, either as fast as
+ * possible or at the pace they were recorded. Commands written to
+ * getOutputStream are counted and discarded.
+ *
+ * A reply is only played once the controller has sent as many commands as
+ * replies played, so replies do not overtake the commands they answer. If the
+ * controller sends fewer commands than were recorded, the reply is played
+ * after waiting REPLY_WAIT_MILLIS anyway, which is longer than trains stop at
+ * stations, and the missing command is not waited for again.
+ *
+ * Running the class prints a log as text.
+ *
+ */
+
+public final class ProtocolReplay {
+
+	private static final long REPLY_WAIT_MILLIS = 5000;
+
+	private static final byte[][] STATUS_LINES = new byte[CommandStatus.TRAIN_ON_SWITCH + 1][];
+	private static final String[] TRAIN_EVENT_NAMES = { null, "TrainCollisionEvent", "StopCollisionEvent",
+			"DerailmentEvent" };
+
+	static {
+		STATUS_LINES[CommandStatus.OK] = bytes("SuccessStatus\n");
+		STATUS_LINES[CommandStatus.ILLEGAL_SPEED] = bytes("IllegalReverseStatus\n");
+		STATUS_LINES[CommandStatus.NO_SUCH_TRAIN] = bytes("IllegalTrainNoStatus\n");
+		STATUS_LINES[CommandStatus.NO_SUCH_SWITCH] = bytes("NoSwitchStatus\n");
+		STATUS_LINES[CommandStatus.NO_SUCH_POS] = bytes("IllegalRailPosStatus\n");
+		STATUS_LINES[CommandStatus.TRAIN_ON_SWITCH] = bytes("IllegalSwitchingStatus\n");
+	}
+
+	private final ByteBuffer log;
+	private final boolean paced;
+	private final long startMillis;
+	private final Input input = new Input();
+	private final Output output = new Output();
+
+	/**
+	 * Opens a log for playback.
+	 *
+	 * @param path
+	 *            the log file.
+	 * @param paced
+	 *            true to play messages at the pace they were recorded, false
+	 *            to play them as fast as they are read.
+	 * @throws IOException
+	 *             if the file cannot be read or is not a log.
+	 */
+
+	public ProtocolReplay(String path, boolean paced) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close(); // the mapping stays valid
+		}
+		if (log.remaining() < ProtocolRecorder.HEADER_SIZE || log.getLong() != ProtocolRecorder.MAGIC)
+			throw new IOException(path + ": not a TSim log");
+		startMillis = log.getLong();
+		this.paced = paced;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Returns the time the recording started, in milliseconds since the
+	 * epoch.
+	 */
+
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * Returns the messages TSim sent, as TSim sent them. Reading blocks while
+	 * pacing or while waiting for the command a reply answers, and returns -1
+	 * at the end of the log.
+	 */
+
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	/**
+	 * Returns the stream the controller writes its commands to.
+	 */
+
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	/* Returns the next record's message, or 0 at the end; the time goes to nanos[0]. */
+	private static long next(ByteBuffer log, long[] nanos) {
+		if (log.remaining() < ProtocolRecorder.RECORD_SIZE)
+			return 0;
+		nanos[0] = log.getLong();
+		return log.getLong(); // 0 in the unused end of a log that was not closed
+	}
+
+	/* Returns the line tsim sends for a command status, or null for an unknown status. */
+	private static byte[] statusLine(int status) {
+		return status < STATUS_LINES.length ? STATUS_LINES[status] : null;
+	}
+
+	/*
+	 * Returns the protocol text of a message from tsim, or of a command.
+	 */
+	static String toProtocol(long packed) {
+		int kind = PackedEvent.kind(packed);
+		switch (kind) {
+		case PackedEvent.COMMAND_STATUS:
+			byte[] line = statusLine(PackedEvent.status(packed));
+			return line != null ? new String(line, 0, line.length - 1, StandardCharsets.US_ASCII)
+					: "unknown status " + PackedEvent.status(packed);
+		case PackedEvent.SENSOR:
+			return "Sensor " + PackedEvent.trainId(packed) + " " + PackedEvent.xPos(packed) + " "
+					+ PackedEvent.yPos(packed) + (PackedEvent.status(packed) == SensorEvent.ACTIVE ? " active" : " inactive");
+		case PackedEvent.TRAIN_EVENT:
+			int event = PackedEvent.status(packed);
+			return (event < TRAIN_EVENT_NAMES.length && event > 0 ? TRAIN_EVENT_NAMES[event] : "UnknownEvent") + " "
+					+ PackedEvent.trainId(packed);
+		case ProtocolRecorder.SET_SPEED_RECORD:
+			return "SetSpeed " + PackedEvent.trainId(packed) + " " + (short) PackedEvent.xPos(packed);
+		case ProtocolRecorder.SET_SWITCH_RECORD:
+			return "SetSwitch " + PackedEvent.xPos(packed) + " " + PackedEvent.yPos(packed)
+					+ (PackedEvent.status(packed) == TSimInterface.SWITCH_LEFT ? " LeftSwitch" : " RightSwitch");
+		default:
+			return "unknown record " + Long.toHexString(packed);
+		}
+	}
+
+	/*
+	 * The messages from tsim, one line at a time.
+	 */
+	private final class Input extends InputStream {
+		private final long[] nanos = new long[1];
+		private byte[] line;
+		private int pos;
+		private long replies; // played, less the commands the controller never sent
+		private long firstReadNanos = -1;
+
+		public int read() throws IOException {
+			if (!nextLine())
+				return -1;
+			return line[pos++];
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!nextLine())
+				return -1;
+			int n = Math.min(len, line.length - pos);
+			System.arraycopy(line, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		/* Makes sure part of a line is left to read; false at the end of the log. */
+		private boolean nextLine() throws IOException {
+			if (line != null && pos < line.length)
+				return true;
+			long packed;
+			while ((packed = next(log, nanos)) != 0) {
+				int kind = PackedEvent.kind(packed);
+				if (kind == ProtocolRecorder.SET_SPEED_RECORD || kind == ProtocolRecorder.SET_SWITCH_RECORD)
+					continue; // sent by the controller, not by tsim
+				if (paced)
+					awaitTime(nanos[0]);
+				if (kind == PackedEvent.COMMAND_STATUS) {
+					replies++;
+					if (!output.awaitCommands(replies))
+						replies--;
+					line = statusLine(PackedEvent.status(packed));
+				} else {
+					line = null;
+				}
+				if (line == null)
+					line = bytes(toProtocol(packed) + "\n");
+				pos = 0;
+				return true;
+			}
+			return false;
+		}
+
+		/* Waits until as much time has passed since the first read as had when the message was recorded. */
+		private void awaitTime(long recordedNanos) throws IOException {
+			if (firstReadNanos < 0)
+				firstReadNanos = System.nanoTime() - recordedNanos;
+			long delay;
+			while ((delay = firstReadNanos + recordedNanos - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, delay);
+				if (Thread.interrupted())
+					throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/*
+	 * The commands from the controller, of which only the lines are counted.
+	 */
+	private static final class Output extends OutputStream {
+		private long commands;
+
+		public synchronized void write(int b) {
+			if (b == '\n') {
+				commands++;
+				notifyAll();
+			}
+		}
+
+		public synchronized void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++)
+				if (b[i] == '\n')
+					commands++;
+			notifyAll();
+		}
+
+		/* Waits until count commands have been written, but no longer than REPLY_WAIT_MILLIS; false if they were not. */
+		synchronized boolean awaitCommands(long count) throws IOException {
+			long deadline = System.currentTimeMillis() + REPLY_WAIT_MILLIS;
+			long left;
+			while (commands < count && (left = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			return commands >= count;
+		}
+	}
+
+	/**
+	 * Prints a log as text, one message per line with the time in seconds
+	 * since the start of the recording; messages from tsim are marked with
+	 * &lt; and commands with &gt;.
+	 */
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: java TSim.ProtocolReplay <log>");
+			return;
+		}
+		ProtocolReplay replay = new ProtocolReplay(args[0], false);
+		System.out.println("# recorded " + new Date(replay.startMillis));
+		long[] nanos = new long[1];
+		long packed;
+		while ((packed = next(replay.log, nanos)) != 0) {
+			int kind = PackedEvent.kind(packed);
+			boolean command = kind == ProtocolRecorder.SET_SPEED_RECORD || kind == ProtocolRecorder.SET_SWITCH_RECORD;
+			System.out.printf("%12.6f %s %s%n", nanos[0] / 1e9, command ? ">" : "<", toProtocol(packed));
+		}
+	}
+}
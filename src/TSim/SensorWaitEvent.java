@@ -0,0 +1,72 @@
+package TSim;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Flight Recorder event for each time a controller waits for the sensor
+ * events of a train, lasting as long as the wait. While no recording wants
+ * it, no event is created, so that waits allocate nothing.
+ *
+ */
+
+@Name("TSim.SensorWait")
+@Label("Sensor Wait")
+@Category("TSim")
+@Description("A controller waiting for a train to pass a sensor")
+@StackTrace(false)
+final class SensorWaitEvent extends jdk.jfr.Event {
+
+	@Label("Train Id")
+	int trainId;
+
+	@Label("Events")
+	@Description("The number of sensor events received")
+	int events;
+
+	@Label("X")
+	@Description("The position of the last sensor event received")
+	int xPos;
+
+	@Label("Y")
+	int yPos;
+
+	@Label("Active")
+	boolean active;
+
+	private static final EventType TYPE = EventType.getEventType(SensorWaitEvent.class);
+
+	/*
+	 * Returns a new event whose wait begins now if a recording wants it, and
+	 * null otherwise.
+	 */
+	static SensorWaitEvent beginIfEnabled() {
+		if (!TYPE.isEnabled())
+			return null;
+		SensorWaitEvent event = new SensorWaitEvent();
+		event.begin();
+		return event;
+	}
+
+	/*
+	 * Ends the wait of a train, which received count events, the last being
+	 * the packed event last, and commits it unless recording is off.
+	 */
+	void commit(int trainId, int count, long last) {
+		end();
+		if (!shouldCommit())
+			return;
+		this.trainId = trainId;
+		events = count;
+		if (count > 0) {
+			xPos = PackedEvent.xPos(last);
+			yPos = PackedEvent.yPos(last);
+			active = PackedEvent.status(last) == SensorEvent.ACTIVE;
+		}
+		commit();
+	}
+}
@@ -3,6 +3,7 @@ package TSim;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.concurrent.*;
 
 /**
@@ -10,6 +11,13 @@ import java.util.concurrent.*;
  * It handles the extraction of information from TSim and provides methods for
  * manipulating trains, sensors and switches.
  *
+ * The laboration uses the single instance returned by getInstance, which
+ * talks to the TSim given to init and exits the JVM when TSim closes the
+ * connection. A client of its own, with its own threads, queues and trains,
+ * is made by open for each further simulator, so that one JVM can drive any
+ * number of them; such a client just stops once its TSim closes the
+ * connection.
+ *
  */
 
 public final class TSimInterface {
@@ -20,43 +28,100 @@ public final class TSimInterface {
 	private static TSimInterface tsim;
 
 	/*
-	 * We maintain one buffer (commandFIFO) of command replies from tsim and one
-	 * buffer of sensor events for each train (sensorVec(trainId)).
+	 * We maintain one queue (pendingCommands) of commands sent to tsim that
+	 * are waiting for a reply, filled by the writer thread as it writes them,
+	 * and one channel of sensor events for each train (channels[trainId]).
+	 * Tsim answers commands in the order they were sent, so each reply
+	 * completes the oldest pending command.
 	 * 
-	 * Further we maintain a vector of TrainErrorEvents indexed by trainId,
-	 * where a non-null entry means a fatal event has occurred.
+	 * The channels are created once, for train ids 1 to trainCount, so
+	 * looking one up is a plain array access. Without a train count (see
+	 * init), the channels are created for DEFAULT_TRAIN_COUNT trains, and
+	 * the array is copied into a larger one the first time a higher train id
+	 * is seen, by the reading thread or by a controller. A channel also holds
+	 * the TrainErrorEvent of its train, where non-null means a fatal event
+	 * has occurred.
+	 *
+	 * With an event handler set, sensor events bypass the channels and are
+	 * passed to the handler by the reading thread itself.
+	 *
+	 * Sensor events a train has not subscribed to are dropped by the reading
+	 * thread, before they wake up anybody (see subscribe).
+	 *
+	 * Every message is stamped with System.nanoTime() as soon as it has been
+	 * read, and the latencies measured from there go into metrics.
+	 *
+	 * Answered commands and waits for sensor events are also committed as
+	 * Flight Recorder events (CommandEvent, SensorWaitEvent), which are not
+	 * even created while no recording wants them.
 	 */
 
-	private LinkedBlockingQueue<CommandStatus> commandFIFO = new LinkedBlockingQueue<CommandStatus>();
+	private static final int DEFAULT_TRAIN_COUNT = 8;
+	private static final int CHANNEL_CAPACITY = 256;
+	private static final int DEBUG_LOG_CAPACITY = 8192;
 
-	private AddingArrayList<LinkedBlockingQueue<SensorEvent>> sensorVec = new AddingArrayList<LinkedBlockingQueue<SensorEvent>>();
+	private ConcurrentLinkedQueue<CommandWriter.Command> pendingCommands =
+			new ConcurrentLinkedQueue<CommandWriter.Command>();
 
-	private AddingArrayList<TrainErrorEvent> trainVec = new AddingArrayList<TrainErrorEvent>();
+	private volatile TrainChannel[] channels;
+	private final boolean growing; // the train count is unknown, so channels grows as higher ids are seen
+	private boolean closed; // the connection has ended, so channels are created closed; guarded by this
+	private final TSimMetrics metrics;
+	private volatile TrainEventHandler handler;
+	private volatile ProtocolRecorder recorder;
 
 	private TSimStream sTSim;
-	private PrintWriter out;
+	private CommandWriter writer;
 	private PrintWriter err;
+	private final OutputStream errStream; // errors for debugging
+	private final boolean exitAtEnd; // the single instance exits the JVM when tsim closes the connection
 
+	/* The streams of the single instance, set by init */
 	private static InputStream inStream; // tsim sends us output
 	private static OutputStream outStream; // we send commands to tsim
-	private static OutputStream errStream; // errors for debugging
-	private boolean debug = false;
+	private static int trainCount; // 0 if unknown
+	private volatile DebugLog debugLog; // null unless debugging
+	private DebugLog debugOutput; // created by the first setDebug(true) and kept, with its thread
 
 	/**
 	 * Create a new TSimInterface
 	 *
 	 */
-	private TSimInterface() {
-		this.sTSim = new TSimStream(TSimInterface.inStream);
-		this.out = new PrintWriter(TSimInterface.outStream, true);
-		this.err = new PrintWriter(TSimInterface.errStream, true);
+	private TSimInterface(InputStream in, OutputStream out, OutputStream errStream, int trainCount,
+			boolean exitAtEnd) {
+		this.sTSim = new TSimStream(in);
+		this.errStream = errStream;
+		this.exitAtEnd = exitAtEnd;
+		this.err = new PrintWriter(errStream, true);
+		this.writer = new CommandWriter(out, pendingCommands, err, exitAtEnd ? "tsim-writer" : "tsim-writer-" + id());
+		this.growing = trainCount == 0;
+		if (growing)
+			trainCount = DEFAULT_TRAIN_COUNT;
+		this.metrics = new TSimMetrics(trainCount);
+		TrainChannel[] channels = new TrainChannel[trainCount + 1];
+		for (int id = 1; id < channels.length; id++)
+			channels[id] = new TrainChannel(CHANNEL_CAPACITY, metrics.sensors(id));
+		this.channels = channels;
 	}
 
-	// new
+	/**
+	 * Sets the streams to tsim, for any number of trains: the trains are
+	 * known from the first time their id is used, by tsim or by a call.
+	 * Must be called before the first call to getInstance.
+	 */
 	public static synchronized void init(InputStream in, OutputStream out) {
+		init(in, out, 0);
+	}
+
+	/**
+	 * Sets the streams to tsim and the number of trains, whose ids run from 1
+	 * to trainCount, or any number of trains for a trainCount of 0. Must be
+	 * called before the first call to getInstance.
+	 */
+	public static synchronized void init(InputStream in, OutputStream out, int trainCount) {
 		TSimInterface.inStream = in;
 		TSimInterface.outStream = out;
-		TSimInterface.errStream = System.err;
+		TSimInterface.trainCount = trainCount;
 	}
 
 	/**
@@ -66,7 +131,7 @@ public final class TSimInterface {
 	 */
 	public static synchronized TSimInterface getInstance() {
 		if (tsim == null) {
-			tsim = new TSimInterface();
+			tsim = new TSimInterface(inStream, outStream, System.err, trainCount, true);
 			new Thread(new Runnable() {
 				public void run() {
 					tsim.readLoop();
@@ -77,70 +142,361 @@ public final class TSimInterface {
 	}
 
 	/**
-	 * Repeatedly reads messages from tsim; runs in a separate thread.
+	 * Creates a client of its own for the TSim at the given streams, with
+	 * trains 1 to trainCount, and starts its threads. Unlike the single
+	 * instance, it is independent of any other client, and once TSim closes
+	 * the connection its threads end, commands fail and so does waiting for
+	 * sensor events, rather than the JVM exiting.
+	 *
+	 * @param in
+	 *            the stream TSim writes to.
+	 * @param out
+	 *            the stream TSim reads commands from.
+	 * @param trainCount
+	 *            the number of trains, or 0 for any number (see init).
+	 * @return the new client.
 	 */
-	private void readLoop() {
-		while (true) {
-
-			try {
-				TSimInformation dInfo = sTSim.read();
 
-				if (debug)
-					this.err.println("     " + dInfo);
-
-				if (dInfo instanceof CommandStatus)
-					commandFIFO.offer((CommandStatus) dInfo);
-
-				else if (dInfo instanceof TrainErrorEvent) {
-					TrainErrorEvent tEvent = (TrainErrorEvent) dInfo;
-					int trainId = tEvent.getTrainId();
-					/*
-					 * Store the error event to make future commands concerning
-					 * this train result in an exception.
-					 */
+	public static TSimInterface open(InputStream in, OutputStream out, int trainCount) {
+		final TSimInterface client = new TSimInterface(in, out, System.err, trainCount, false);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				client.readLoop();
+			}
+		}, "tsim-reader-" + client.id());
+		reader.setDaemon(true);
+		reader.start();
+		return client;
+	}
 
-					trainVec.set(trainId, tEvent);
-					reportTrainErrorEvent(tEvent);
-				}
+	// Tells the threads of clients apart
+	private String id() {
+		return Integer.toHexString(System.identityHashCode(this));
+	}
 
-				else if (dInfo instanceof SensorEvent) {
-					SensorEvent sEvent = (SensorEvent) dInfo;
-					int trainId = sEvent.getTrainId();
+	/**
+	 * Repeatedly reads messages from tsim; runs in a separate thread. Messages
+	 * are read in packed form and handed on without creating objects, except
+	 * for the rare train error events.
+	 */
+	private void readLoop() {
+		while (true) {
 
-					getSensorEventQueue(trainId).put(sEvent);
+			try {
+				long info = sTSim.readPacked();
+				long readNanos = System.nanoTime();
+				ProtocolRecorder r = recorder;
+				if (r != null)
+					r.received(info, readNanos);
+
+				DebugLog log = debugLog;
+				if (log != null)
+					log.log(info);
+
+				switch (PackedEvent.kind(info)) {
+				case PackedEvent.COMMAND_STATUS:
+					completeCommand(CommandStatus.valueOf(PackedEvent.status(info)), readNanos);
+					break;
+				case PackedEvent.SENSOR:
+					TrainChannel channel = channel(PackedEvent.trainId(info));
+					TrainEventHandler h = handler;
+					if (channel == null)
+						this.err.println("sensor event for unknown train: " + PackedEvent.toString(info));
+					else if (!channel.wants(info))
+						break;
+					else if (h == null)
+						channel.put(info, readNanos);
+					else {
+						metrics.sensors(PackedEvent.trainId(info)).record(System.nanoTime() - readNanos);
+						h.sensorEvent(info);
+						channel.handled();
+					}
+					break;
+				case PackedEvent.TRAIN_EVENT:
+					storeTrainErrorEvent(new TrainErrorEvent(PackedEvent.trainId(info), PackedEvent.status(info)));
+					break;
 				}
+			} catch (EndOfInputException e) {
+				if (exitAtEnd)
+					System.exit(1);
+				ended();
+				return;
 			} catch (UnparsableInputException e) {
 				this.err.println(e.getMessage());
-			} catch (InterruptedException e) {
-				this.err.println(e.getMessage());
+			} catch (RuntimeException e) {
+				e.printStackTrace(this.err); // thrown by an event handler
 			}
 		}
 	}
 
+	/*
+	 * TSim has closed the connection: stops the writer, which fails the
+	 * commands that will not be answered, wakes up the trains waiting for
+	 * sensor events and stops the debug output once it has printed the rest.
+	 */
+	private void ended() {
+		writer.close();
+		TrainChannel[] channels;
+		DebugLog log;
+		synchronized (this) {
+			closed = true;
+			channels = this.channels;
+			log = debugOutput;
+		}
+		for (int id = 1; id < channels.length; id++)
+			channels[id].close();
+		if (log != null)
+			log.close();
+	}
+
+	/*
+	 * Store the error event to make future commands concerning this train
+	 * result in an exception.
+	 */
+	private void storeTrainErrorEvent(TrainErrorEvent tEvent) {
+		TrainChannel channel = channel(tEvent.getTrainId());
+		if (channel != null)
+			channel.fail(tEvent);
+		reportTrainErrorEvent(tEvent);
+		TrainEventHandler h = handler;
+		if (h != null)
+			h.trainError(tEvent);
+	}
+
 	private void reportTrainErrorEvent(TrainErrorEvent e) {
 		this.err.println(e);
 	}
 
-	private LinkedBlockingQueue<SensorEvent> getSensorEventQueue(int trainId) {
-		LinkedBlockingQueue<SensorEvent> trainSensorFIFO = sensorVec.get(trainId);
-		if (trainSensorFIFO == null) {
-			trainSensorFIFO = new LinkedBlockingQueue<SensorEvent>();
-			sensorVec.set(trainId, trainSensorFIFO);
+	/* Returns the channel of the train, or null for an unknown id. */
+	private TrainChannel channel(int trainId) {
+		TrainChannel[] channels = this.channels;
+		if (trainId > 0 && trainId < channels.length)
+			return channels[trainId];
+		return trainId > 0 && growing ? grow(trainId) : null;
+	}
+
+	/* Creates the channels up to the given train id and returns its channel. */
+	private synchronized TrainChannel grow(int trainId) {
+		TrainChannel[] old = this.channels;
+		if (trainId < old.length)
+			return old[trainId];
+		int trainCount = Math.max(trainId, 2 * (old.length - 1));
+		metrics.grow(trainCount);
+		TrainChannel[] channels = Arrays.copyOf(old, trainCount + 1);
+		for (int id = old.length; id < channels.length; id++) {
+			channels[id] = new TrainChannel(CHANNEL_CAPACITY, metrics.sensors(id));
+			if (closed)
+				channels[id].close();
 		}
+		this.channels = channels;
+		return channels[trainId];
+	}
+
+	/* The exception for a call about a train there is no channel for. */
+	private CommandException noSuchTrain(int trainId) {
+		return new CommandException("no such train: " + trainId
+				+ (growing ? "" : ", this client has trains 1 to " + (channels.length - 1)));
+	}
+
+	private TrainChannel sensorChannel(int trainId) throws CommandException {
+		TrainChannel channel = channel(trainId);
+		if (channel == null)
+			throw noSuchTrain(trainId);
+
+		/* some event has happened for this train i.e. it has crashed */
+
+		TrainErrorEvent tEvent = channel.getError();
+		if (tEvent != null)
+			throw new CommandException(tEvent.toString());
+		return channel;
+	}
 
-		return trainSensorFIFO;
+	private TrainErrorEvent trainError(int trainId) {
+		TrainChannel channel = channel(trainId);
+		return channel == null ? null : channel.getError();
+	}
+
+	private CompletableFuture<CommandStatus> submit(int kind, int a, int b, int c) {
+		return writer.submit(kind, a, b, c);
+	}
+
+	private void completeCommand(CommandStatus cStat, long readNanos) {
+		CommandWriter.Command reply = pendingCommands.poll();
+		if (reply != null) {
+			writer.answered();
+			LatencyHistogram latency = reply.kind == CommandWriter.SET_SPEED ? metrics.commands(reply.a)
+					: metrics.getSwitchLatency();
+			if (latency != null)
+				latency.record(readNanos - reply.submitNanos);
+			CommandEvent.commit(reply, cStat, readNanos);
+			reply.complete(cStat);
+		} else
+			this.err.println("reply without command: " + cStat);
+	}
+
+	/*
+	 * Waits for the reply to a command and throws a CommandException unless
+	 * it succeeded. As before, an interrupted wait returns silently, but the
+	 * interrupt is kept for the next blocking call to see.
+	 */
+	private static void awaitSuccess(CompletableFuture<CommandStatus> reply) throws CommandException {
+		try {
+			CommandStatus cStat = reply.get();
+			if (cStat.getStatus() != CommandStatus.OK)
+				throw new CommandException(cStat.toString());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CommandException)
+				throw (CommandException) e.getCause();
+			throw new CommandException(String.valueOf(e.getCause()));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
-	 * Turns on and off printing of debug info
+	 * Turns on and off printing of debug info: the commands sent to tsim and
+	 * the messages received. The messages are printed by a background thread,
+	 * and dropped if it falls too far behind.
 	 */
 
 	public void setDebug(boolean debug) {
-		this.debug = debug;
+		setDebug(debug, true);
+	}
+
+	/**
+	 * Turns on and off printing of debug info, choosing what happens when the
+	 * thread printing it falls too far behind: the messages that do not fit
+	 * are either dropped, which never slows down the trains, or the threads
+	 * talking to tsim wait until they fit.
+	 *
+	 * @param debug
+	 *            true to print debug info.
+	 * @param dropWhenFull
+	 *            true to drop messages, false to wait.
+	 */
+
+	public synchronized void setDebug(boolean debug, boolean dropWhenFull) {
+		DebugLog log = null;
+		if (debug) {
+			if (debugOutput == null)
+				debugOutput = new DebugLog(errStream, DEBUG_LOG_CAPACITY, dropWhenFull);
+			log = debugOutput;
+			log.setDropWhenFull(dropWhenFull);
+		}
+		this.debugLog = log;
+		this.writer.setDebugLog(log);
+	}
+
+	/**
+	 * Returns the number of debug messages dropped because the thread
+	 * printing them fell behind.
+	 */
+
+	public synchronized long getDroppedDebugMessages() {
+		return debugOutput == null ? 0 : debugOutput.getDropped();
+	}
+
+	/**
+	 * Makes the thread reading from tsim pass every sensor event to the
+	 * handler as soon as it has been read, instead of queueing it for the
+	 * train, and tell it about crashed trains. getSensor and drainSensors then
+	 * receive no events. Should be set before the first command is sent.
+	 *
+	 * @param handler
+	 *            the handler, or null to queue events again.
+	 */
+
+	public void setEventHandler(TrainEventHandler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Makes the specified train receive only the sensor events with one of
+	 * the given statuses, from getSensor and drainSensors or the event
+	 * handler. The others are dropped as soon as they are read. A train
+	 * receives every event until it subscribes.
+	 *
+	 * @param trainId
+	 *            the id of the train.
+	 * @param statuses
+	 *            SensorEvent.ACTIVE, SensorEvent.INACTIVE or both or-ed
+	 *            together.
+	 * @throws CommandException
+	 *             if the supplied id was false.
+	 */
+
+	public void subscribe(int trainId, int statuses) throws CommandException {
+		subscribe(trainId, statuses, null, null);
 	}
 
 	/**
-	 * Sets the speed of a train.
+	 * Makes the specified train receive only the sensor events with one of
+	 * the given statuses from the sensors at the given positions, like
+	 * subscribe(trainId, statuses).
+	 *
+	 * @param trainId
+	 *            the id of the train.
+	 * @param statuses
+	 *            SensorEvent.ACTIVE, SensorEvent.INACTIVE or both or-ed
+	 *            together.
+	 * @param xPos
+	 *            the x coordinates of the sensors, or null for every sensor.
+	 * @param yPos
+	 *            the y coordinates of the sensors, in the same order.
+	 * @throws CommandException
+	 *             if the supplied id was false.
+	 */
+
+	public void subscribe(int trainId, int statuses, int[] xPos, int[] yPos) throws CommandException {
+		TrainChannel channel = channel(trainId);
+		if (channel == null)
+			throw noSuchTrain(trainId);
+		int[] positions = null;
+		if (xPos != null) {
+			if (yPos == null || yPos.length != xPos.length)
+				throw new IllegalArgumentException("a y coordinate is needed for each x coordinate");
+			positions = new int[xPos.length];
+			for (int i = 0; i < positions.length; i++)
+				positions[i] = TrainChannel.position(xPos[i], yPos[i]);
+			Arrays.sort(positions);
+		}
+		channel.subscribe(statuses & (SensorEvent.ACTIVE | SensorEvent.INACTIVE), positions);
+	}
+
+	/**
+	 * Records every message read from tsim and every command written to it
+	 * from now on, until the recorder is closed. A recording is played back
+	 * with ProtocolReplay.
+	 *
+	 * @param recorder
+	 *            the recorder, or null to stop recording.
+	 */
+
+	public void setRecorder(ProtocolRecorder recorder) {
+		this.recorder = recorder;
+		this.writer.setRecorder(recorder);
+	}
+
+	/**
+	 * Returns the latency histograms of commands and sensor events, which are
+	 * recorded all the time.
+	 */
+
+	public TSimMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the writer that sends commands to tsim, whose counters show how
+	 * well commands are batched.
+	 */
+
+	public CommandWriter getCommandWriter() {
+		return writer;
+	}
+
+	/**
+	 * Sets the speed of a train and waits for tsim to confirm.
 	 *
 	 * @param trainId
 	 *            the id of the train to be affected by the command.
@@ -151,25 +507,40 @@ public final class TSimInterface {
 	 *             was illegal (ILLEGAL_SPEED) or if the train had crashed.
 	 *
 	 */
-	public synchronized void setSpeed(int trainId, int speed) throws CommandException {
-		TrainErrorEvent tEvent = trainVec.get(trainId);
+	public void setSpeed(int trainId, int speed) throws CommandException {
+		TrainErrorEvent tEvent = trainError(trainId);
 
 		/* some event has happened for this train i.e. it has crashed */
 
 		if (tEvent != null)
 			throw new CommandException(tEvent.toString());
-		String output = "SetSpeed " + trainId + " " + speed;
-		this.out.println(output);
-		if (debug)
-			this.err.print(output);
 
-		try {
-			CommandStatus cStat = commandFIFO.take();
-			if (cStat.getStatus() != CommandStatus.OK)
-				throw new CommandException(cStat.toString());
-		} catch (InterruptedException e) {
+		awaitSuccess(submit(CommandWriter.SET_SPEED, trainId, speed, 0));
+	}
+
+	/**
+	 * Sends a SetSpeed command without waiting for the reply. Other commands
+	 * may be sent while this one is in flight.
+	 *
+	 * @param trainId
+	 *            the id of the train to be affected by the command.
+	 * @param speed
+	 *            the new speed of the train.
+	 * @return a future completed with the status tsim replies with, or
+	 *         completed exceptionally with a CommandException if the train
+	 *         had crashed.
+	 *
+	 */
+	public CompletableFuture<CommandStatus> setSpeedAsync(int trainId, int speed) {
+		TrainErrorEvent tEvent = trainError(trainId);
+
+		if (tEvent != null) {
+			CompletableFuture<CommandStatus> failed = new CompletableFuture<CommandStatus>();
+			failed.completeExceptionally(new CommandException(tEvent.toString()));
+			return failed;
 		}
 
+		return submit(CommandWriter.SET_SPEED, trainId, speed, 0);
 	}
 
 	/**
@@ -189,20 +560,25 @@ public final class TSimInterface {
 	 *             (TRAIN_ON_SWITCH)
 	 *
 	 */
-	public synchronized void setSwitch(int xPos, int yPos, int switchDir) throws CommandException {
-
-		String output = "SetSwitch " + xPos + " " + yPos + (switchDir == SWITCH_LEFT ? " LeftSwitch" : " RightSwitch");
-		this.out.println(output);
-		if (debug)
-			this.err.print(output);
-
-		try {
-			CommandStatus cStat = commandFIFO.take();
-			if (cStat.getStatus() != CommandStatus.OK)
-				throw new CommandException(cStat.toString());
-		} catch (InterruptedException e) {
-		}
+	public void setSwitch(int xPos, int yPos, int switchDir) throws CommandException {
+		awaitSuccess(setSwitchAsync(xPos, yPos, switchDir));
+	}
 
+	/**
+	 * Sends a SetSwitch command without waiting for the reply. Other commands
+	 * may be sent while this one is in flight.
+	 *
+	 * @param xPos
+	 *            the x coordinate of the switch.
+	 * @param yPos
+	 *            the y coordinate of the switch.
+	 * @param switchDir
+	 *            the new direction of the switch.
+	 * @return a future completed with the status tsim replies with.
+	 *
+	 */
+	public CompletableFuture<CommandStatus> setSwitchAsync(int xPos, int yPos, int switchDir) {
+		return submit(CommandWriter.SET_SWITCH, xPos, yPos, switchDir);
 	}
 
 	/**
@@ -216,14 +592,123 @@ public final class TSimInterface {
 	 *
 	 */
 	public SensorEvent getSensor(int trainId) throws CommandException, InterruptedException {
-		TrainErrorEvent tEvent = trainVec.get(trainId);
+		return (SensorEvent) PackedEvent.toInformation(getSensorPacked(trainId));
+	}
 
-		/* some event has happened for this train i.e. it has crashed */
+	/**
+	 * Blocks the calling thread until the specified train passes a sensor, like
+	 * getSensor, but returns the event packed into a long as described in
+	 * PackedEvent, so no objects are created.
+	 *
+	 * @param trainId
+	 *            the id of the train to wait for.
+	 * @return the packed sensor event
+	 * @throws CommandException
+	 *             if the train has crashed.
+	 *
+	 */
+	public long getSensorPacked(int trainId) throws CommandException, InterruptedException {
+		SensorWaitEvent event = SensorWaitEvent.beginIfEnabled();
+		long sensorEvent = sensorChannel(trainId).take();
+		if (event != null)
+			event.commit(trainId, 1, sensorEvent);
+		return sensorEvent;
+	}
 
-		if (tEvent != null)
-			throw new CommandException(tEvent.toString());
+	/**
+	 * Blocks the calling thread until the specified train has passed at least
+	 * one sensor, then moves all its pending sensor events that fit into the
+	 * buffer, oldest first and packed as described in PackedEvent. A burst of
+	 * events is thus handled with a single wakeup.
+	 *
+	 * Each train's events must be taken by one thread at a time.
+	 *
+	 * @param trainId
+	 *            the id of the train to wait for.
+	 * @param buffer
+	 *            the array to fill.
+	 * @return the number of events stored at the start of buffer.
+	 * @throws CommandException
+	 *             if the train has crashed.
+	 *
+	 */
+	public int drainSensors(int trainId, long[] buffer) throws CommandException, InterruptedException {
+		SensorWaitEvent event = SensorWaitEvent.beginIfEnabled();
+		int count = sensorChannel(trainId).drain(buffer);
+		if (event != null)
+			event.commit(trainId, count, count > 0 ? buffer[count - 1] : 0);
+		return count;
+	}
+
+	/**
+	 * Tells an in-process simulator that the controller of the specified
+	 * train is blocked on something other than the train's sensor events,
+	 * such as a clock or another train, so that the simulation does not wait
+	 * for it. Whoever wakes the controller up calls resumed before it does;
+	 * if that happens before the controller gets to block, the two cancel
+	 * out.
+	 *
+	 * @param trainId
+	 *            the id of the train.
+	 */
+	public void parked(int trainId) {
+		TrainChannel channel = channel(trainId);
+		if (channel != null)
+			channel.parked();
+	}
+
+	/**
+	 * Undoes parked for the specified train: its controller is about to go
+	 * on.
+	 *
+	 * @param trainId
+	 *            the id of the train.
+	 */
+	public void resumed(int trainId) {
+		TrainChannel channel = channel(trainId);
+		if (channel != null)
+			channel.resumed();
+	}
+
+	/**
+	 * Returns true if the specified train has a controller: it has been
+	 * subscribed to, its sensor events have been waited for or its
+	 * controller has been parked, or an event handler is set. In-process
+	 * simulators wait for the controllers of such trains even while the
+	 * trains stand still.
+	 *
+	 * @param trainId
+	 *            the id of the train.
+	 * @return true if the train has a controller.
+	 */
+	public boolean isControlled(int trainId) {
+		TrainChannel channel = channel(trainId);
+		return channel != null && (handler != null || channel.isControlled());
+	}
 
-		return getSensorEventQueue(trainId).take();
+	/**
+	 * Returns true if the controller of the specified train can only go on
+	 * once the simulator sends something: no command awaits its reply, and
+	 * the controller is parked or has taken the given number of sensor
+	 * events and is blocked waiting for the next one. With an event handler
+	 * set, the handler must have returned from that many events instead.
+	 * Events the train has not subscribed to count as taken once they have
+	 * been read. In-process simulators use this to hold the simulation until
+	 * the controller has reacted to everything it was sent.
+	 *
+	 * @param trainId
+	 *            the id of the train.
+	 * @param sensorEvents
+	 *            the number of sensor events sent for the train.
+	 * @return true if the controller waits for the simulator.
+	 */
+	public boolean isWaitingForSimulator(int trainId, long sensorEvents) {
+		TrainChannel channel = channel(trainId);
+		if (channel == null || writer.inFlight() != 0)
+			return false;
+		if (channel.isParked())
+			return true;
+		return (handler != null ? channel.handledCount() : channel.eventsTakenWhileWaiting()) == sensorEvents;
 	}
 
 }
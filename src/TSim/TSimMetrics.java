@@ -0,0 +1,134 @@
+package TSim;
+
+import java.util.Arrays;
+
+/**
+ * Latency histograms kept by a TSimInterface, one of each kind per train:
+ * the round-trip time of SetSpeed commands, from being queued to tsim's
+ * reply, and the time from a sensor event being read from tsim to it being
+ * handed to the controller. SetSwitch commands are not tied to a train and
+ * share one histogram.
+ *
+ * Command latencies are recorded by the reading thread as replies arrive.
+ * Sensor latencies are recorded on the side of the controller: by the
+ * train's thread as it takes events from its channel (see TrainChannel),
+ * or by the reading thread before it hands an event to an event handler.
+ * The histograms may be read and reset from any thread.
+ *
+ */
+
+public final class TSimMetrics {
+
+	// By train id; grown to more trains by copying, sensors first so that it is never the shorter one
+	private volatile LatencyHistogram[] commands;
+	private volatile LatencyHistogram[] sensors;
+	private final LatencyHistogram switches = new LatencyHistogram();
+
+	TSimMetrics(int trainCount) {
+		commands = new LatencyHistogram[trainCount + 1];
+		sensors = new LatencyHistogram[trainCount + 1];
+		for (int id = 1; id <= trainCount; id++) {
+			commands[id] = new LatencyHistogram();
+			sensors[id] = new LatencyHistogram();
+		}
+	}
+
+	/* Adds the histograms of the trains after the ones known up to the given count. */
+	synchronized void grow(int trainCount) {
+		LatencyHistogram[] commands = Arrays.copyOf(this.commands, trainCount + 1);
+		LatencyHistogram[] sensors = Arrays.copyOf(this.sensors, trainCount + 1);
+		for (int id = this.commands.length; id <= trainCount; id++) {
+			commands[id] = new LatencyHistogram();
+			sensors[id] = new LatencyHistogram();
+		}
+		this.sensors = sensors;
+		this.commands = commands;
+	}
+
+	/* Returns the command histogram of the train, or null for an unknown id. */
+	LatencyHistogram commands(int trainId) {
+		LatencyHistogram[] commands = this.commands;
+		return trainId > 0 && trainId < commands.length ? commands[trainId] : null;
+	}
+
+	LatencyHistogram sensors(int trainId) {
+		return sensors[trainId];
+	}
+
+	public int getTrainCount() {
+		return commands.length - 1;
+	}
+
+	/**
+	 * Returns the round-trip times of the SetSpeed commands for a train.
+	 *
+	 * @param trainId
+	 *            the id of the train.
+	 * @throws IllegalArgumentException
+	 *             if there is no such train.
+	 */
+
+	public LatencyHistogram getCommandLatency(int trainId) {
+		return checked(commands, trainId);
+	}
+
+	/**
+	 * Returns the time from tsim reporting a sensor event for a train to the
+	 * controller receiving it.
+	 *
+	 * @param trainId
+	 *            the id of the train.
+	 * @throws IllegalArgumentException
+	 *             if there is no such train.
+	 */
+
+	public LatencyHistogram getSensorLatency(int trainId) {
+		return checked(sensors, trainId);
+	}
+
+	/**
+	 * Returns the round-trip times of all SetSwitch commands.
+	 */
+
+	public LatencyHistogram getSwitchLatency() {
+		return switches;
+	}
+
+	private static LatencyHistogram checked(LatencyHistogram[] histograms, int trainId) {
+		if (trainId < 1 || trainId >= histograms.length)
+			throw new IllegalArgumentException("no such train: " + trainId);
+		return histograms[trainId];
+	}
+
+	/**
+	 * Empties all histograms.
+	 */
+
+	public void reset() {
+		LatencyHistogram[] commands = this.commands, sensors = this.sensors;
+		for (int id = 1; id < commands.length; id++) {
+			commands[id].reset();
+			sensors[id].reset();
+		}
+		switches.reset();
+	}
+
+	/**
+	 * Returns one line per histogram, leaving out trains without any values.
+	 */
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		LatencyHistogram[] commands = this.commands, sensors = this.sensors;
+		for (int id = 1; id < commands.length; id++) {
+			LatencyHistogram.Snapshot c = commands[id].snapshot();
+			if (c.getCount() > 0)
+				sb.append("train ").append(id).append(" commands: ").append(c).append('\n');
+			LatencyHistogram.Snapshot s = sensors[id].snapshot();
+			if (s.getCount() > 0)
+				sb.append("train ").append(id).append(" sensors: ").append(s).append('\n');
+		}
+		sb.append("switch commands: ").append(switches.snapshot());
+		return sb.toString();
+	}
+}
@@ -1,28 +1,98 @@
 package TSim;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Reads text from the given input stream connected to TSim and returns a stream
  * of TSimInformation.
  *
+ * Messages are parsed straight from the bytes in the read buffer: keywords are
+ * recognised by their first byte and length and compared byte by byte, and
+ * integers are accumulated from their ASCII digits, so no strings or other
+ * objects are created for well-formed input.
+ *
+ * Input is read through a channel into a single 8 KB buffer, which is
+ * refilled once consumed; a token cut off at its end is moved to the front
+ * first. Each message is returned either packed into a long (readPacked, see
+ * PackedEvent) or as a TSimInformation (read).
+ * Malformed messages are reported as UnparsableInputException, the end of
+ * the input as EndOfInputException. The stream owns everything it reads
+ * and is not meant to be extended.
+ *
  **/
 
-public class TSimStream {
-	protected StreamTokenizer sTokenizer;
+public final class TSimStream {
+
+	private static final int SUCCESS_STATUS = 0;
+	private static final int NO_SWITCH_STATUS = 1;
+	private static final int ILLEGAL_TRAIN_NO_STATUS = 2;
+	private static final int ILLEGAL_REVERSE_STATUS = 3;
+	private static final int ILLEGAL_RAIL_POS_STATUS = 4;
+	private static final int ILLEGAL_SWITCHING_STATUS = 5;
+	private static final int SENSOR = 6;
+	private static final int TRAIN_COLLISION_EVENT = 7;
+	private static final int STOP_COLLISION_EVENT = 8;
+	private static final int DERAILMENT_EVENT = 9;
+	private static final int INACTIVE = 10;
+	private static final int UNKNOWN = -1;
+
+	private static final byte[][] KEYWORDS = { bytes("SuccessStatus"), bytes("NoSwitchStatus"),
+			bytes("IllegalTrainNoStatus"), bytes("IllegalReverseStatus"), bytes("IllegalRailPosStatus"),
+			bytes("IllegalSwitchingStatus"), bytes("Sensor"), bytes("TrainCollisionEvent"),
+			bytes("StopCollisionEvent"), bytes("DerailmentEvent"), bytes("inactive") };
+
+	/* Keywords to try, by the first byte of the token. */
+	private static final int[][] BY_FIRST_BYTE = new int[128][];
+
+	static {
+		for (int k = 0; k < KEYWORDS.length; k++) {
+			int first = KEYWORDS[k][0];
+			int[] old = BY_FIRST_BYTE[first] == null ? new int[0] : BY_FIRST_BYTE[first];
+			int[] candidates = new int[old.length + 1];
+			System.arraycopy(old, 0, candidates, 0, old.length);
+			candidates[old.length] = k;
+			BY_FIRST_BYTE[first] = candidates;
+		}
+	}
+
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+	private final byte[] bytes = buffer.array();
+	private int pos; // next unread byte
+	private int lim; // end of the bytes read
+	private int tokStart;
+	private int tokLen;
 
 	/**
 	 * Creates a new TSimStream that reads from the given InputStream.
-	 * 
+	 *
 	 * @param in
 	 *            the input stream to read text from.
 	 *
 	 */
 
 	public TSimStream(InputStream in) {
-		BufferedReader inReader = new BufferedReader(new InputStreamReader(in));
+		this(Channels.newChannel(in));
+	}
 
-		sTokenizer = new StreamTokenizer(inReader);
+	/**
+	 * Creates a new TSimStream that reads from the given channel.
+	 *
+	 * @param channel
+	 *            the blocking channel to read text from.
+	 *
+	 */
+
+	public TSimStream(ReadableByteChannel channel) {
+		this.channel = channel;
+	}
+
+	private static byte[] bytes(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
 	}
 
 	/**
@@ -31,121 +101,178 @@ public class TSimStream {
 	 *
 	 * @return next message from TSim
 	 * @throws UnparsableInputException
-	 *             when the input from TSim is not parsable.
+	 *             when the input from TSim is not parsable, an
+	 *             EndOfInputException at the end of the input.
 	 **/
 
 	public TSimInformation read() throws UnparsableInputException {
-		String cmd = readString(sTokenizer);
-
-		TSimInformation info = null;
-
-		if (cmd.equals("SuccessStatus"))
-			info = new CommandStatus(CommandStatus.OK);
-		else if (cmd.equals("NoSwitchStatus"))
-			info = new CommandStatus(CommandStatus.NO_SUCH_SWITCH);
-		else if (cmd.equals("IllegalTrainNoStatus"))
-			info = new CommandStatus(CommandStatus.NO_SUCH_TRAIN);
-		else if (cmd.equals("IllegalReverseStatus"))
-			info = new CommandStatus(CommandStatus.ILLEGAL_SPEED);
-		else if (cmd.equals("IllegalRailPosStatus"))
-			info = new CommandStatus(CommandStatus.NO_SUCH_POS);
-		else if (cmd.equals("IllegalSwitchingStatus"))
-			info = new CommandStatus(CommandStatus.TRAIN_ON_SWITCH);
-		else if (cmd.equals("Sensor")) {
-
-			int id = readInt(sTokenizer);
-			int xPos = readInt(sTokenizer);
-			int yPos = readInt(sTokenizer);
-
-			int sStatus = SensorEvent.ACTIVE;
-
-			if (readString(sTokenizer).equals("inactive"))
-				sStatus = SensorEvent.INACTIVE;
-
-			info = new SensorEvent(id, xPos, yPos, sStatus);
-
-		} else if (cmd.equals("TrainCollisionEvent")) {
-
-			int id = readInt(sTokenizer);
-
-			info = new TrainEvent(id, TrainEvent.TRAIN_COLLISION);
-		} else if (cmd.equals("StopCollisionEvent")) {
-
-			int id = readInt(sTokenizer);
+		return PackedEvent.toInformation(readPacked());
+	}
 
-			info = new TrainEvent(id, TrainEvent.STOP_COLLISION);
-		} else if (cmd.equals("DerailmentEvent")) {
-			int id = readInt(sTokenizer);
+	/**
+	 * Reads from the input stream and returns the message from TSim encoded
+	 * as described in PackedEvent. Command statuses and sensor events are
+	 * returned without creating message objects.
+	 *
+	 * @return next message from TSim, packed into a long
+	 * @throws UnparsableInputException
+	 *             when the input from TSim is not parsable, an
+	 *             EndOfInputException at the end of the input.
+	 **/
 
-			info = new TrainEvent(id, TrainEvent.DERAILMENT);
-		} else
+	public long readPacked() throws UnparsableInputException {
+		switch (readKeyword()) {
+		case SUCCESS_STATUS:
+			return PackedEvent.commandStatus(CommandStatus.OK);
+		case NO_SWITCH_STATUS:
+			return PackedEvent.commandStatus(CommandStatus.NO_SUCH_SWITCH);
+		case ILLEGAL_TRAIN_NO_STATUS:
+			return PackedEvent.commandStatus(CommandStatus.NO_SUCH_TRAIN);
+		case ILLEGAL_REVERSE_STATUS:
+			return PackedEvent.commandStatus(CommandStatus.ILLEGAL_SPEED);
+		case ILLEGAL_RAIL_POS_STATUS:
+			return PackedEvent.commandStatus(CommandStatus.NO_SUCH_POS);
+		case ILLEGAL_SWITCHING_STATUS:
+			return PackedEvent.commandStatus(CommandStatus.TRAIN_ON_SWITCH);
+		case SENSOR:
+			int id = readInt();
+			int xPos = readInt();
+			int yPos = readInt();
+			int sStatus = (readKeyword() == INACTIVE) ? SensorEvent.INACTIVE : SensorEvent.ACTIVE;
+			return PackedEvent.sensor(id, xPos, yPos, sStatus);
+		case TRAIN_COLLISION_EVENT:
+			return PackedEvent.trainEvent(readInt(), TrainEvent.TRAIN_COLLISION);
+		case STOP_COLLISION_EVENT:
+			return PackedEvent.trainEvent(readInt(), TrainEvent.STOP_COLLISION);
+		case DERAILMENT_EVENT:
+			return PackedEvent.trainEvent(readInt(), TrainEvent.DERAILMENT);
+		default:
 			throw new UnparsableInputException("unknown information from tsim");
-
-		/*
-		 * What if there is something that would result in a TT_EOL. Shouldn't
-		 * we handle this here?
-		 */
-
-		return info;
-
+		}
 	}
 
 	/**
-	 * Help method that reads a string from the tokenizer and returns it or
-	 * throws an exception if the next token was not a string. Upon reading EOF
-	 * the whole system exits.
+	 * Help method that reads a word and returns the number of the keyword it
+	 * matches, or UNKNOWN. Throws an exception if the next token was a number.
 	 *
-	 * @param sTokenizer
-	 *            the stream tokenizer to read from.
-	 * @return the read string.
+	 * @return the keyword read.
 	 * @throws UnparsableInputException
-	 *             when the next token was not a string.
+	 *             when the next token was not a string, an
+	 *             EndOfInputException at the end of the input.
 	 */
 
-	protected String readString(StreamTokenizer sTokenizer) throws UnparsableInputException {
-		try {
-			int type = sTokenizer.nextToken();
-
-			if (type == StreamTokenizer.TT_EOF)
-				System.exit(1);
+	private int readKeyword() throws UnparsableInputException {
+		if (!nextToken())
+			throw new EndOfInputException();
 
-			if (type != StreamTokenizer.TT_WORD)
-				throw new UnparsableInputException("string expected");
-
-			return sTokenizer.sval;
-		} catch (IOException e) {
-			throw new UnparsableInputException(e.getMessage());
-		}
+		int first = bytes[tokStart] & 0xff;
+		if (first == '-' || (first >= '0' && first <= '9'))
+			throw new UnparsableInputException("string expected");
 
+		int[] candidates = first < BY_FIRST_BYTE.length ? BY_FIRST_BYTE[first] : null;
+		if (candidates != null)
+			for (int k : candidates)
+				if (tokenEquals(KEYWORDS[k]))
+					return k;
+		return UNKNOWN;
 	}
 
 	/**
-	 * Help method that reads an integer from the tokenizer and returns it or
-	 * throws an exception if the next token was not an integer. Upon reading
-	 * EOF the whole system exits.
+	 * Help method that reads an integer and returns it or throws an exception
+	 * if the next token was not an integer.
 	 *
-	 * @param sTokenizer
-	 *            the stream tokenizer to read from.
 	 * @return the read integer.
 	 * @throws UnparsableInputException
-	 *             when the next token was not an integer.
+	 *             when the next token was not an integer, an
+	 *             EndOfInputException at the end of the input.
 	 */
 
-	protected int readInt(StreamTokenizer sTokenizer) throws UnparsableInputException {
-		try {
-
-			int type = sTokenizer.nextToken();
-
-			if (type == StreamTokenizer.TT_EOF)
-				System.exit(1);
+	private int readInt() throws UnparsableInputException {
+		if (!nextToken())
+			throw new EndOfInputException();
+
+		int i = tokStart;
+		int end = tokStart + tokLen;
+		boolean negative = bytes[i] == '-';
+		if (negative)
+			i++;
+		if (i == end || bytes[i] < '0' || bytes[i] > '9')
+			throw new UnparsableInputException("int expected");
+
+		int value = 0;
+		for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++)
+			value = value * 10 + (bytes[i] - '0');
+		if (i < end && bytes[i] == '.') // fractions are truncated
+			for (i++; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++)
+				;
+		if (i != end)
+			throw new UnparsableInputException("int expected");
+
+		return negative ? -value : value;
+	}
 
-			if (type != StreamTokenizer.TT_NUMBER)
-				throw new UnparsableInputException("int expected");
+	private boolean tokenEquals(byte[] keyword) {
+		if (keyword.length != tokLen)
+			return false;
+		for (int i = 1; i < tokLen; i++)
+			if (bytes[tokStart + i] != keyword[i])
+				return false;
+		return true;
+	}
 
-			return (int) sTokenizer.nval;
+	/*
+	 * Finds the next whitespace delimited token and sets tokStart and tokLen;
+	 * returns false at the end of the input.
+	 */
+	private boolean nextToken() throws UnparsableInputException {
+		try {
+			do {
+				while (pos < lim && (bytes[pos] & 0xff) <= ' ')
+					pos++;
+			} while (pos == lim && refill());
+			if (pos == lim)
+				return false;
+
+			int start = pos;
+			while (true) {
+				while (pos < lim && (bytes[pos] & 0xff) > ' ')
+					pos++;
+				if (pos < lim)
+					break;
+				/* the token may continue; move it to the front and read on */
+				int len = pos - start;
+				System.arraycopy(bytes, start, bytes, 0, len);
+				start = 0;
+				pos = lim = len;
+				if (lim == bytes.length)
+					throw new UnparsableInputException("token too long");
+				if (!fill())
+					break;
+			}
+			tokStart = start;
+			tokLen = pos - start;
+			return true;
 		} catch (IOException e) {
 			throw new UnparsableInputException(e.getMessage());
 		}
 	}
 
+	private boolean refill() throws IOException {
+		pos = lim = 0;
+		return fill();
+	}
+
+	/* Appends at least one byte after lim; returns false at end of input. */
+	private boolean fill() throws IOException {
+		buffer.limit(bytes.length).position(lim);
+		int n;
+		do {
+			n = channel.read(buffer);
+		} while (n == 0);
+		if (n < 0)
+			return false;
+		lim += n;
+		return true;
+	}
+
 }
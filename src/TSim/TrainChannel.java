@@ -0,0 +1,279 @@
+package TSim;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The sensor events of one train on their way from the thread reading from
+ * TSim to the thread controlling the train. The ring has exactly one producer
+ * and one consumer, so passing an event costs an array access and a volatile
+ * write on each side; no lock is taken, and nothing is allocated while the
+ * ring has room. A full ring is replaced by one twice as large, so the
+ * reading thread never waits for a train that falls behind, which would hold
+ * up every other train and the replies to commands.
+ *
+ * The consumer parks while the ring is empty and is unparked by the next
+ * event, or by a train error event, which it then receives as a
+ * CommandException.
+ *
+ * Each event is stamped with the time it was read from TSim, and the time it
+ * then spent in the ring is recorded in the train's sensor latency histogram
+ * when the consumer takes it.
+ *
+ * The channel also holds the train's subscription: the statuses and sensor
+ * positions of the events it wants. The producer drops the others before
+ * they reach the ring, counting them as taken.
+ *
+ * For in-process simulators, the channel tells whether the train has a
+ * controller at all, and whether that controller is parked on something
+ * other than the ring (see TSimInterface.parked).
+ *
+ */
+
+final class TrainChannel {
+
+	/* The events and when they were read, by position modulo the length. */
+	private static final class Ring {
+		final long[] buf;
+		final long[] stamps; // System.nanoTime() of each event in buf when read
+		final int mask;
+
+		Ring(int capacity) {
+			buf = new long[capacity];
+			stamps = new long[capacity];
+			mask = capacity - 1;
+		}
+	}
+
+	/*
+	 * Replaced by the producer only, before it publishes an event in the new
+	 * ring by advancing tail; the consumer reads it after tail.
+	 */
+	private volatile Ring ring;
+	private final LatencyHistogram latency;
+	private volatile long head; // next to take, written by the consumer only
+	private volatile long tail; // next to put, written by the producer only
+	private volatile Thread consumer; // set while the consumer may park
+
+	private volatile TrainErrorEvent error;
+	private volatile boolean closed; // the connection to TSim has ended
+
+	/*
+	 * Written by the consumer only: twice the number of events taken, plus
+	 * one while it is waiting for more.
+	 */
+	private long taken;
+	private volatile long waitState;
+
+	/* Written by the producer only: events passed to an event handler. */
+	private volatile long handled;
+
+	/* Written by the producer only: events dropped by the subscription. */
+	private volatile long skipped;
+
+	/* Parked minus resumed, written by the controller and whoever wakes it up. */
+	private final AtomicInteger parked = new AtomicInteger();
+
+	/* Set once the train is subscribed to, waited for or parked. */
+	private volatile boolean controlled;
+
+	/* The subscription: a mask of SensorEvent statuses, and the sorted positions (see position) or null */
+	private volatile int statuses = SensorEvent.ACTIVE | SensorEvent.INACTIVE;
+	private volatile int[] positions;
+
+	TrainChannel(int capacity, LatencyHistogram latency) {
+		ring = new Ring(Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1);
+		this.latency = latency;
+	}
+
+	/*
+	 * Producer only. Appends an event read at readNanos, growing the ring if
+	 * it is full.
+	 */
+	void put(long event, long readNanos) {
+		long t = tail;
+		Ring r = ring;
+		if (t - head == r.buf.length)
+			r = grow(r, t);
+		r.buf[(int) t & r.mask] = event;
+		r.stamps[(int) t & r.mask] = readNanos;
+		tail = t + 1;
+		Thread waiter = consumer;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
+	/*
+	 * Producer only. Replaces the full ring by one twice as large holding the
+	 * same events up to t. The consumer may still take events from the old
+	 * ring meanwhile; they are the same in both.
+	 */
+	private Ring grow(Ring old, long t) {
+		Ring grown = new Ring(old.buf.length << 1);
+		for (long i = head; i < t; i++) {
+			grown.buf[(int) i & grown.mask] = old.buf[(int) i & old.mask];
+			grown.stamps[(int) i & grown.mask] = old.stamps[(int) i & old.mask];
+		}
+		ring = grown;
+		return grown;
+	}
+
+	/*
+	 * Marks the train as crashed and wakes up a consumer waiting for it.
+	 */
+	void fail(TrainErrorEvent event) {
+		error = event;
+		Thread waiter = consumer;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
+	/*
+	 * Marks the connection to TSim as ended and wakes up a consumer waiting
+	 * for events, which gets a CommandException once it has taken the rest.
+	 */
+	void close() {
+		closed = true;
+		Thread waiter = consumer;
+		if (waiter != null)
+			LockSupport.unpark(waiter);
+	}
+
+	TrainErrorEvent getError() {
+		return error;
+	}
+
+	/*
+	 * Consumer only. Waits for the next event and removes it.
+	 */
+	long take() throws CommandException, InterruptedException {
+		awaitEvents();
+		long h = head;
+		Ring r = ring;
+		long event = r.buf[(int) h & r.mask];
+		latency.record(System.nanoTime() - r.stamps[(int) h & r.mask]);
+		head = h + 1;
+		taken++;
+		waitState = taken << 1;
+		return event;
+	}
+
+	/*
+	 * Consumer only. Waits for at least one event and moves as many as fit
+	 * into buffer, oldest first; returns the number moved.
+	 */
+	int drain(long[] buffer) throws CommandException, InterruptedException {
+		if (buffer.length == 0)
+			return 0;
+		awaitEvents();
+		long h = head;
+		int n = (int) Math.min(tail - h, buffer.length);
+		Ring r = ring;
+		long now = System.nanoTime();
+		for (int i = 0; i < n; i++) {
+			buffer[i] = r.buf[(int) (h + i) & r.mask];
+			latency.record(now - r.stamps[(int) (h + i) & r.mask]);
+		}
+		head = h + n;
+		taken += n;
+		waitState = taken << 1;
+		return n;
+	}
+
+	private void awaitEvents() throws CommandException, InterruptedException {
+		if (!controlled)
+			controlled = true;
+		long h = head;
+		waitState = (taken << 1) | 1;
+		if (tail != h)
+			return;
+		consumer = Thread.currentThread();
+		try {
+			while (tail == h) {
+				TrainErrorEvent e = error;
+				if (e != null)
+					throw new CommandException(e.toString());
+				if (closed)
+					throw new CommandException("the connection to tsim has ended");
+				if (Thread.interrupted())
+					throw new InterruptedException();
+				LockSupport.park(this);
+			}
+		} catch (CommandException | InterruptedException e) {
+			waitState = taken << 1;
+			throw e;
+		} finally {
+			consumer = null;
+		}
+	}
+
+	/*
+	 * Producer only. Counts an event passed to an event handler instead.
+	 */
+	void handled() {
+		handled = handled + 1;
+	}
+
+	long handledCount() {
+		return handled + skipped;
+	}
+
+	/*
+	 * Sets the events the train wants: those with one of the statuses, at
+	 * one of the positions or anywhere if positions is null.
+	 */
+	void subscribe(int statuses, int[] positions) {
+		this.positions = positions;
+		this.statuses = statuses;
+		controlled = true;
+	}
+
+	void parked() {
+		controlled = true;
+		parked.incrementAndGet();
+	}
+
+	void resumed() {
+		parked.decrementAndGet();
+	}
+
+	/*
+	 * True while the controller has been parked more often than resumed; a
+	 * controller resumed before it parks counts as running.
+	 */
+	boolean isParked() {
+		return parked.get() > 0;
+	}
+
+	boolean isControlled() {
+		return controlled;
+	}
+
+	/*
+	 * Producer only. Returns true if the train wants the sensor event, and
+	 * otherwise counts it as taken.
+	 */
+	boolean wants(long event) {
+		int[] p = positions;
+		if ((statuses & PackedEvent.status(event)) != 0 && (p == null
+				|| Arrays.binarySearch(p, position(PackedEvent.xPos(event), PackedEvent.yPos(event))) >= 0))
+			return true;
+		skipped = skipped + 1;
+		return false;
+	}
+
+	/* A sensor position as an int ordered by x, then y */
+	static int position(int xPos, int yPos) {
+		return xPos << 16 | yPos & 0xFFFF;
+	}
+
+	/*
+	 * Returns the number of events taken, or dropped by the subscription, if
+	 * the consumer is waiting for events, and -1 otherwise.
+	 */
+	long eventsTakenWhileWaiting() {
+		long state = waitState;
+		return (state & 1) != 0 ? (state >> 1) + skipped : -1;
+	}
+}
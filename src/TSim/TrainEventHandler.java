@@ -0,0 +1,31 @@
+package TSim;
+
+/**
+ * Receives the events of all trains directly on the thread reading from
+ * TSim, instead of each train taking its events from its own channel. See
+ * TSimInterface.setEventHandler.
+ *
+ * Handlers run on the only thread that reads replies from TSim, so they must
+ * not block, and in particular must not wait for the reply to a command:
+ * use setSpeedAsync and setSwitchAsync instead.
+ *
+ */
+
+public interface TrainEventHandler {
+
+	/**
+	 * Called for every sensor event.
+	 *
+	 * @param event
+	 *            the sensor event, packed as described in PackedEvent.
+	 */
+	void sensorEvent(long event);
+
+	/**
+	 * Called when a train has crashed.
+	 *
+	 * @param event
+	 *            the collision or derailment.
+	 */
+	void trainError(TrainErrorEvent event);
+}
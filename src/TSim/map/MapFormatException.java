@@ -0,0 +1,14 @@
+package TSim.map;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a map file is not a well-formed TrainLineFile or describes an
+ * impossible layout.
+ */
+
+public class MapFormatException extends IOException {
+	public MapFormatException(String s) {
+		super(s);
+	}
+}
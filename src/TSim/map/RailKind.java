@@ -0,0 +1,51 @@
+package TSim.map;
+
+/**
+ * The kinds of rail that can be placed on a tile of a TrainLineFile. Every
+ * rail connects two sides of its tile; stop rails connect one side to a buffer
+ * stop.
+ *
+ */
+
+public enum RailKind {
+	HORIZONTAL("HorizontalRail", TrackMap.WEST, TrackMap.EAST),
+	VERTICAL("VerticalRail", TrackMap.NORTH, TrackMap.SOUTH),
+	DOWN_RIGHT("DownRightRail", TrackMap.SOUTH, TrackMap.EAST),
+	UP_RIGHT("UpRightRail", TrackMap.NORTH, TrackMap.EAST),
+	DOWN_LEFT("DownLeftRail", TrackMap.SOUTH, TrackMap.WEST),
+	UP_LEFT("UpLeftRail", TrackMap.NORTH, TrackMap.WEST),
+	RIGHT_STOP("RightStopRail", TrackMap.WEST, TrackMap.STOP),
+	LEFT_STOP("LeftStopRail", TrackMap.EAST, TrackMap.STOP),
+	UP_STOP("UpStopRail", TrackMap.SOUTH, TrackMap.STOP),
+	DOWN_STOP("DownStopRail", TrackMap.NORTH, TrackMap.STOP);
+
+	private final String token;
+	final int sideA;
+	final int sideB;
+
+	private RailKind(String token, int sideA, int sideB) {
+		this.token = token;
+		this.sideA = sideA;
+		this.sideB = sideB;
+	}
+
+	/**
+	 * Returns the name of the rail kind as written in a TrainLineFile.
+	 */
+
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Returns the rail kind written as the given token, or null if there is
+	 * none.
+	 */
+
+	public static RailKind forToken(String token) {
+		for (RailKind kind : values())
+			if (kind.token.equals(token))
+				return kind;
+		return null;
+	}
+}
@@ -0,0 +1,375 @@
+package TSim.map;
+
+import TSim.TSimInterface;
+
+/**
+ * Immutable model of a track layout. Tiles are addressed by their index
+ * <code>y * width + x</code>; sensors and switches are numbered in the same
+ * order, top to bottom and left to right. All lookups are array accesses into
+ * tables built once by the constructor, so they neither lock nor allocate.
+ *
+ * A train moving through a tile enters it through one side and leaves it
+ * through another; {@link #route} gives the exit side for every entry side and
+ * switch position. Sensors and switches are the nodes of the track graph and
+ * the rails between them its segments, whose end and length are available
+ * for every tile and exit side.
+ *
+ */
+
+public final class TrackMap {
+
+	/* Sides of a tile, clockwise from the top. */
+	public static final int NORTH = 0;
+	public static final int EAST = 1;
+	public static final int SOUTH = 2;
+	public static final int WEST = 3;
+
+	/** Exit through a buffer stop. */
+	public static final int STOP = -1;
+	/** No rail, or a switch set against the train. */
+	public static final int NO_RAIL = -2;
+
+	private static final int[] DX = { 0, 1, 0, -1 };
+	private static final int[] DY = { -1, 0, 1, 0 };
+
+	private final int width;
+	private final int height;
+
+	private final int[] neighbours; // [tile * 4 + side] -> tile or -1
+	private final int[] routes; // [(tile * 4 + side) * 2 + position] -> exit
+	private final boolean[] crossings;
+
+	private final int[] sensorAt; // tile -> sensor or -1
+	private final int[] sensorTiles;
+
+	private final int[] switchAt; // tile -> switch or -1
+	private final int[] switchTiles;
+	private final int[] switchStems;
+
+	private final int[] segmentEnds; // [tile * 4 + side] -> node tile or -1
+	private final int[] segmentEntries;
+	private final int[] segmentLengths;
+
+	private final int[] trainTiles;
+	private final int[] trainHeadings;
+	private final int[] trainLengths;
+
+	/*
+	 * Builds the tables from the parsed tiles; rails[tile] is null for tiles
+	 * without rails. Trains are given as {x, y, length, heading} rows.
+	 */
+	TrackMap(int width, int height, RailKind[][] rails, boolean[] sensors, int[][] trains)
+			throws MapFormatException {
+		this.width = width;
+		this.height = height;
+		int tiles = width * height;
+
+		neighbours = new int[tiles * 4];
+		for (int t = 0; t < tiles; t++)
+			for (int side = 0; side < 4; side++)
+				neighbours[t * 4 + side] = tile(t % width + DX[side], t / width + DY[side]);
+
+		int sensorCount = 0;
+		int switchCount = 0;
+		sensorAt = new int[tiles];
+		switchAt = new int[tiles];
+		crossings = new boolean[tiles];
+		for (int t = 0; t < tiles; t++) {
+			sensorAt[t] = sensors[t] ? sensorCount++ : -1;
+			switchAt[t] = stem(rails[t]) != NO_RAIL ? switchCount++ : -1;
+			crossings[t] = rails[t] != null && rails[t].length == 2 && switchAt[t] < 0;
+		}
+
+		sensorTiles = new int[sensorCount];
+		switchTiles = new int[switchCount];
+		switchStems = new int[switchCount];
+		routes = new int[tiles * 8];
+		for (int t = 0; t < tiles; t++) {
+			if (sensorAt[t] >= 0)
+				sensorTiles[sensorAt[t]] = t;
+			if (switchAt[t] >= 0) {
+				switchTiles[switchAt[t]] = t;
+				switchStems[switchAt[t]] = stem(rails[t]);
+			}
+			buildRoutes(t, rails[t]);
+		}
+
+		segmentEnds = new int[tiles * 4];
+		segmentEntries = new int[tiles * 4];
+		segmentLengths = new int[tiles * 4];
+		for (int t = 0; t < tiles; t++)
+			for (int side = 0; side < 4; side++)
+				buildSegment(t, side);
+
+		trainTiles = new int[trains.length];
+		trainHeadings = new int[trains.length];
+		trainLengths = new int[trains.length];
+		for (int i = 0; i < trains.length; i++) {
+			trainTiles[i] = tile(trains[i][0], trains[i][1]);
+			trainLengths[i] = trains[i][2];
+			trainHeadings[i] = trains[i][3];
+			if (trainTiles[i] < 0 || rails[trainTiles[i]] == null)
+				throw new MapFormatException("train " + (i + 1) + " is not placed on a rail");
+		}
+	}
+
+	/*
+	 * Returns the side shared by the two rails of a switch tile, or NO_RAIL if
+	 * the tile is not a switch.
+	 */
+	private static int stem(RailKind[] rails) {
+		if (rails == null || rails.length != 2)
+			return NO_RAIL;
+		RailKind a = rails[0], b = rails[1];
+		if (a.sideA == b.sideA || a.sideA == b.sideB)
+			return a.sideA;
+		if (a.sideB != STOP && (a.sideB == b.sideA || a.sideB == b.sideB))
+			return a.sideB;
+		return NO_RAIL;
+	}
+
+	/*
+	 * Seen from a train entering a switch through its stem, the branch turning
+	 * further to the left is LeftSwitch.
+	 */
+	private void buildRoutes(int t, RailKind[] rails) {
+		for (int side = 0; side < 4; side++) {
+			routes[(t * 4 + side) * 2] = NO_RAIL;
+			routes[(t * 4 + side) * 2 + 1] = NO_RAIL;
+		}
+		if (rails == null)
+			return;
+		if (switchAt[t] < 0) {
+			for (RailKind rail : rails) {
+				setRoute(t, rail.sideA, 0, rail.sideB);
+				setRoute(t, rail.sideA, 1, rail.sideB);
+				if (rail.sideB != STOP) {
+					setRoute(t, rail.sideB, 0, rail.sideA);
+					setRoute(t, rail.sideB, 1, rail.sideA);
+				}
+			}
+			return;
+		}
+
+		int stem = switchStems[switchAt[t]];
+		int heading = opposite(stem);
+		int[] branch = new int[2];
+		int[] turn = new int[2];
+		for (int i = 0; i < 2; i++) {
+			branch[i] = rails[i].sideA == stem ? rails[i].sideB : rails[i].sideA;
+			turn[i] = branch[i] == STOP ? 0 : DX[heading] * DY[branch[i]] - DY[heading] * DX[branch[i]];
+		}
+		int left = turn[0] < turn[1] ? 0 : 1;
+		setRoute(t, stem, 0, branch[left]);
+		setRoute(t, stem, 1, branch[1 - left]);
+		if (branch[left] != STOP)
+			setRoute(t, branch[left], 0, stem);
+		if (branch[1 - left] != STOP)
+			setRoute(t, branch[1 - left], 1, stem);
+	}
+
+	private void setRoute(int t, int entry, int position, int exit) {
+		routes[(t * 4 + entry) * 2 + position] = exit;
+	}
+
+	/* Follows the rails from tile t through side until a sensor or switch. */
+	private void buildSegment(int t, int side) {
+		int i = t * 4 + side;
+		segmentEnds[i] = -1;
+		int current = neighbours[i];
+		int entry = opposite(side);
+		for (int length = 1; current >= 0 && length <= sensorAt.length; length++) {
+			if (sensorAt[current] >= 0 || switchAt[current] >= 0) {
+				segmentEnds[i] = current;
+				segmentEntries[i] = entry;
+				segmentLengths[i] = length;
+				return;
+			}
+			int exit = routes[(current * 4 + entry) * 2];
+			if (exit < 0)
+				return;
+			current = neighbours[current * 4 + exit];
+			entry = opposite(exit);
+		}
+	}
+
+	/**
+	 * Returns the side opposite to the given one.
+	 */
+
+	public static int opposite(int side) {
+		return (side + 2) & 3;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getTileCount() {
+		return width * height;
+	}
+
+	/**
+	 * Returns the index of the tile at the given coordinates, or -1 if they
+	 * are outside the map.
+	 */
+
+	public int tile(int x, int y) {
+		if (x < 0 || y < 0 || x >= width || y >= height)
+			return -1;
+		return y * width + x;
+	}
+
+	public int tileX(int tile) {
+		return tile % width;
+	}
+
+	public int tileY(int tile) {
+		return tile / width;
+	}
+
+	/**
+	 * Returns the tile next to the given one through side, or -1 at the edge
+	 * of the map.
+	 */
+
+	public int neighbour(int tile, int side) {
+		return neighbours[tile * 4 + side];
+	}
+
+	/**
+	 * Returns the side a train entering the tile through entrySide leaves it
+	 * through.
+	 *
+	 * @param tile
+	 *            the tile entered.
+	 * @param entrySide
+	 *            the side the train enters through.
+	 * @param switchDir
+	 *            the position of the switch on the tile, SWITCH_LEFT or
+	 *            SWITCH_RIGHT; ignored for other tiles.
+	 * @return the exit side, STOP for a buffer stop or NO_RAIL if there is no
+	 *         rail from entrySide or the switch is set against the train.
+	 */
+
+	public int route(int tile, int entrySide, int switchDir) {
+		return routes[(tile * 4 + entrySide) * 2 + (switchDir == TSimInterface.SWITCH_RIGHT ? 1 : 0)];
+	}
+
+	public boolean hasRail(int tile) {
+		for (int side = 0; side < 4; side++)
+			if (routes[(tile * 4 + side) * 2] != NO_RAIL || routes[(tile * 4 + side) * 2 + 1] != NO_RAIL)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Returns true if two rails cross on the tile without forming a switch.
+	 */
+
+	public boolean isCrossing(int tile) {
+		return crossings[tile];
+	}
+
+	public int getSensorCount() {
+		return sensorTiles.length;
+	}
+
+	/**
+	 * Returns the number of the sensor at the given coordinates, or -1 if
+	 * there is none.
+	 */
+
+	public int sensorAt(int x, int y) {
+		int t = tile(x, y);
+		return t < 0 ? -1 : sensorAt[t];
+	}
+
+	public int sensorAtTile(int tile) {
+		return sensorAt[tile];
+	}
+
+	public int sensorTile(int sensor) {
+		return sensorTiles[sensor];
+	}
+
+	public int getSwitchCount() {
+		return switchTiles.length;
+	}
+
+	/**
+	 * Returns the number of the switch at the given coordinates, or -1 if
+	 * there is none.
+	 */
+
+	public int switchAt(int x, int y) {
+		int t = tile(x, y);
+		return t < 0 ? -1 : switchAt[t];
+	}
+
+	public int switchAtTile(int tile) {
+		return switchAt[tile];
+	}
+
+	public int switchTile(int sw) {
+		return switchTiles[sw];
+	}
+
+	/**
+	 * Returns the side of the switch's tile both of its branches join at.
+	 */
+
+	public int switchStem(int sw) {
+		return switchStems[sw];
+	}
+
+	/**
+	 * Returns the first sensor or switch tile reached when leaving tile
+	 * through side, or -1 if the rails end first.
+	 */
+
+	public int segmentEnd(int tile, int side) {
+		return segmentEnds[tile * 4 + side];
+	}
+
+	/**
+	 * Returns the side through which the end of the segment is entered.
+	 */
+
+	public int segmentEntry(int tile, int side) {
+		return segmentEntries[tile * 4 + side];
+	}
+
+	/**
+	 * Returns the number of tiles moved to reach the end of the segment.
+	 */
+
+	public int segmentLength(int tile, int side) {
+		return segmentLengths[tile * 4 + side];
+	}
+
+	/**
+	 * Returns the number of trains placed on the map. Train ids run from 1 to
+	 * this number.
+	 */
+
+	public int getTrainCount() {
+		return trainTiles.length;
+	}
+
+	public int trainTile(int trainId) {
+		return trainTiles[trainId - 1];
+	}
+
+	public int trainHeading(int trainId) {
+		return trainHeadings[trainId - 1];
+	}
+
+	public int trainLength(int trainId) {
+		return trainLengths[trainId - 1];
+	}
+}
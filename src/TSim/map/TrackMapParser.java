@@ -0,0 +1,134 @@
+package TSim.map;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * Reads maps in the TrainLineFile format used by tsim:
+ *
+ * <pre>
+ * TrainLineFile 2
+ * width height
+ * R x y n RailKind... Sensor|NoSensor
+ * R x y Custom text
+ * T x y length Left|Right|Up|Down
+ * .
+ * </pre>
+ *
+ */
+
+public class TrackMapParser {
+
+	/**
+	 * Loads the map in the given file.
+	 *
+	 * @param path
+	 *            the file to read.
+	 * @return the parsed map.
+	 * @throws IOException
+	 *             if the file cannot be read; a MapFormatException if it is
+	 *             not a valid TrainLineFile.
+	 */
+
+	public static TrackMap load(String path) throws IOException {
+		Reader in = new FileReader(path);
+		try {
+			return parse(in);
+		} catch (MapFormatException e) {
+			throw new MapFormatException(path + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Parses a map from the given reader.
+	 *
+	 * @param reader
+	 *            the text of the map.
+	 * @return the parsed map.
+	 * @throws IOException
+	 *             if reading fails; a MapFormatException if the text is not a
+	 *             valid TrainLineFile.
+	 */
+
+	public static TrackMap parse(Reader reader) throws IOException {
+		BufferedReader in = new BufferedReader(reader);
+		String header = in.readLine();
+		if (header == null || !header.startsWith("TrainLineFile"))
+			throw new MapFormatException("not a TrainLineFile");
+		String[] size = tokens(in.readLine(), 2);
+		int width = parseInt(size[0], 2);
+		int height = parseInt(size[1], 2);
+
+		RailKind[][] rails = new RailKind[width * height][];
+		boolean[] sensors = new boolean[width * height];
+		ArrayList<int[]> trains = new ArrayList<int[]>();
+
+		String line;
+		for (int lineNo = 3; (line = in.readLine()) != null; lineNo++) {
+			if (line.trim().isEmpty())
+				continue;
+			String[] tok = tokens(line, lineNo);
+			if (tok[0].equals("."))
+				break;
+			if (tok.length < 4)
+				throw new MapFormatException("line " + lineNo + ": too few fields");
+			int x = parseInt(tok[1], lineNo);
+			int y = parseInt(tok[2], lineNo);
+			if (x < 0 || y < 0 || x >= width || y >= height)
+				throw new MapFormatException("line " + lineNo + ": (" + x + "," + y + ") outside the map");
+
+			if (tok[0].equals("R")) {
+				if (tok[3].equals("Custom")) // decorations such as station signs
+					continue;
+				int n = parseInt(tok[3], lineNo);
+				if (tok.length != 5 + n)
+					throw new MapFormatException("line " + lineNo + ": expected " + n + " rails and a sensor flag");
+				RailKind[] tile = new RailKind[n];
+				for (int i = 0; i < n; i++) {
+					tile[i] = RailKind.forToken(tok[4 + i]);
+					if (tile[i] == null)
+						throw new MapFormatException("line " + lineNo + ": unknown rail kind " + tok[4 + i]);
+				}
+				rails[y * width + x] = tile;
+				sensors[y * width + x] = tok[4 + n].equals("Sensor");
+			} else if (tok[0].equals("T")) {
+				trains.add(new int[] { x, y, parseInt(tok[3], lineNo), parseHeading(tok.length > 4 ? tok[4] : "", lineNo) });
+			} else {
+				throw new MapFormatException("line " + lineNo + ": unknown entry " + tok[0]);
+			}
+		}
+
+		return new TrackMap(width, height, rails, sensors, trains.toArray(new int[trains.size()][]));
+	}
+
+	private static String[] tokens(String line, int lineNo) throws MapFormatException {
+		if (line == null)
+			throw new MapFormatException("line " + lineNo + ": unexpected end of file");
+		return line.trim().split("\\s+");
+	}
+
+	private static int parseInt(String s, int lineNo) throws MapFormatException {
+		try {
+			return Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			throw new MapFormatException("line " + lineNo + ": number expected, got " + s);
+		}
+	}
+
+	private static int parseHeading(String dir, int lineNo) throws MapFormatException {
+		if (dir.equals("Left"))
+			return TrackMap.WEST;
+		if (dir.equals("Right"))
+			return TrackMap.EAST;
+		if (dir.equals("Up"))
+			return TrackMap.NORTH;
+		if (dir.equals("Down"))
+			return TrackMap.SOUTH;
+		throw new MapFormatException("line " + lineNo + ": unknown train direction " + dir);
+	}
+}
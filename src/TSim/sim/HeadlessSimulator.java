@@ -0,0 +1,621 @@
+package TSim.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import TSim.TSimInterface;
+import TSim.map.TrackMap;
+import TSim.map.TrackMapParser;
+
+/**
+ * A pure Java stand-in for the tsim binary. It loads a TrainLineFile map, moves
+ * the trains, triggers sensors and answers SetSpeed/SetSwitch commands with the
+ * same text protocol as tsim, so it can be handed to TSimInterface.init() just
+ * like the streams of the external process.
+ *
+ * The simulator either runs in real time, taking one step every
+ * <code>stepMillis</code> milliseconds like <code>tsim --speed</code>, or as
+ * fast as the CPU allows. A fast simulator attached to the TSimInterface it
+ * talks to only takes a step once the controller of every train that has one
+ * (see TSimInterface.isControlled), or that is moving, has taken all its
+ * sensor events and is blocked waiting for the next one, or is parked on
+ * something else such as a clock. Trains standing still are waited for too,
+ * as their controller may be about to start them. The messages of a step are
+ * passed on one at a time, each once the controller has reacted to the one
+ * before. The controller thus reacts at the same point of the track however
+ * fast the simulation runs and however its threads are scheduled, and the
+ * client should be set up before the simulator is started. Without an
+ * attached interface it pauses after a step that produced output until the
+ * client has read everything and has been quiet for the settle time.
+ *
+ */
+
+public class HeadlessSimulator {
+
+	public enum Pace {
+		REALTIME, FAST
+	}
+
+	/* Distance in tiles covered per step and unit of speed. */
+	static final double TILES_PER_SPEED_UNIT = 0.01;
+	/* Maximum change of speed per step. */
+	static final int ACCELERATION = 1;
+
+	/* Longest wait for an attached controller that neither acts nor waits. */
+	private static final long STALL_NANOS = 1000000000L;
+
+	private final TrackMap map;
+	private final Pace pace;
+	private final int stepMillis;
+	private volatile long settleNanos = 5000000L;
+
+	private final SimulatedTrain[] trains;
+	private final int[] occupancy;
+	private final int[] switchState;
+
+	private final ServerOutput toClient = new ServerOutput();
+	private final CommandSink fromClient = new CommandSink();
+	private volatile TSimInterface client;
+	private volatile Runnable stepListener;
+	private volatile long lastCommandNanos;
+	private volatile boolean running;
+	private long emitted;
+	private ArrayList<Held> held; // the messages of the step being taken, while they are held back
+	private volatile long stalls;
+	private volatile int crashes;
+	private Thread stepper;
+
+	/* A message held back until the controller has reacted to the ones before */
+	private static final class Held {
+		final SimulatedTrain sensed; // the train whose sensor event it is, or null
+		final String line;
+
+		Held(SimulatedTrain sensed, String line) {
+			this.sensed = sensed;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * Creates a new simulator for the given map.
+	 *
+	 * @param mapFile
+	 *            the TrainLineFile to load.
+	 * @param pace
+	 *            whether to run in real time or as fast as possible.
+	 * @param stepMillis
+	 *            milliseconds per step in real time mode, as the --speed
+	 *            argument of tsim.
+	 * @throws IOException
+	 *             if the map cannot be read.
+	 */
+
+	public HeadlessSimulator(String mapFile, Pace pace, int stepMillis) throws IOException {
+		this(TrackMapParser.load(mapFile), pace, stepMillis);
+	}
+
+	/**
+	 * Creates a new simulator for an already loaded map.
+	 *
+	 * @param map
+	 *            the track layout and initial train placements.
+	 * @param pace
+	 *            whether to run in real time or as fast as possible.
+	 * @param stepMillis
+	 *            milliseconds per step in real time mode.
+	 * @throws IOException
+	 *             if a train does not fit on the track.
+	 */
+
+	public HeadlessSimulator(TrackMap map, Pace pace, int stepMillis) throws IOException {
+		this.map = map;
+		this.pace = pace;
+		this.stepMillis = stepMillis;
+
+		occupancy = new int[map.getTileCount()];
+		switchState = new int[map.getSwitchCount()];
+		for (int i = 0; i < switchState.length; i++)
+			switchState[i] = TSimInterface.SWITCH_LEFT;
+
+		trains = new SimulatedTrain[map.getTrainCount()];
+		for (int i = 0; i < trains.length; i++)
+			trains[i] = placeTrain(i + 1);
+	}
+
+	/**
+	 * Returns the most tiles a train moving at the given speed may still
+	 * enter after it has been told to stop: it slows down by ACCELERATION
+	 * every step. Told as it enters a tile, e.g. by a controller reacting to
+	 * the sensor there between two steps, it is at most a step's way into
+	 * that tile; otherwise it may be just short of the next one.
+	 */
+
+	public static int stoppingTiles(int speed, boolean entering) {
+		int unitsPerTile = (int) Math.round(1 / TILES_PER_SPEED_UNIT); // progress is in whole units
+		int units = entering ? Math.abs(speed) - 1 : unitsPerTile - 1; // into the tile the train is on
+		for (int v = Math.abs(speed) - ACCELERATION; v > 0; v -= ACCELERATION)
+			units += v;
+		return units / unitsPerTile;
+	}
+
+	/**
+	 * Sets how long the client must stay quiet after a step with output before
+	 * a fast simulator continues.
+	 */
+
+	public void setSettleMillis(double millis) {
+		this.settleNanos = (long) (millis * 1000000);
+	}
+
+	/**
+	 * Lets a fast simulator wait for the controller behind the given interface
+	 * instead of relying on the settle time.
+	 */
+
+	public void attach(TSimInterface tsi) {
+		this.client = tsi;
+	}
+
+	/**
+	 * Has the listener run by the simulation thread after every step, e.g. to
+	 * advance a clock that keeps the time of the simulation.
+	 */
+
+	public void setStepListener(Runnable listener) {
+		this.stepListener = listener;
+	}
+
+	/**
+	 * Blocks until an attached controller has reacted to everything so far,
+	 * as a fast simulator does before each step, and returns at once
+	 * otherwise. Lets a step listener that wakes the controller up, such as
+	 * a clock running the tasks that became due, do so one task at a time.
+	 */
+
+	public void settle() {
+		if (pace == Pace.FAST && client != null)
+			awaitController();
+	}
+
+	/**
+	 * Returns how many times a fast simulator went on without its attached
+	 * controller, which neither acted nor waited for a second. The
+	 * simulation is then no longer in step with the controller.
+	 */
+
+	public long getStalls() {
+		return stalls;
+	}
+
+	/**
+	 * Returns how many trains have collided or derailed so far.
+	 */
+
+	public int getCrashes() {
+		return crashes;
+	}
+
+	/**
+	 * Returns the stream of messages from the simulator, corresponding to the
+	 * standard output of tsim.
+	 */
+
+	public InputStream getInputStream() {
+		return toClient;
+	}
+
+	/**
+	 * Returns the stream the commands are written to, corresponding to the
+	 * standard input of tsim.
+	 */
+
+	public OutputStream getOutputStream() {
+		return fromClient;
+	}
+
+	/**
+	 * Starts moving the trains in a separate thread.
+	 */
+
+	public synchronized void start() {
+		if (stepper != null)
+			return;
+		running = true;
+		stepper = new Thread(new Runnable() {
+			public void run() {
+				runLoop();
+			}
+		}, "headless-tsim");
+		stepper.setDaemon(true);
+		stepper.start();
+	}
+
+	/**
+	 * Stops the simulation and closes the message stream.
+	 */
+
+	public void stop() {
+		running = false;
+		toClient.close();
+		Thread t = stepper;
+		if (t != null)
+			t.interrupt();
+	}
+
+	/**
+	 * Blocks until the simulation has been stopped.
+	 */
+
+	public void waitFor() throws InterruptedException {
+		Thread t = stepper;
+		if (t != null)
+			t.join();
+	}
+
+	private void runLoop() {
+		long stepNanos = stepMillis * 1000000L;
+		long next = System.nanoTime();
+		while (running) {
+			boolean holding = pace == Pace.FAST && client != null;
+			if (holding)
+				awaitController();
+			long before;
+			boolean output;
+			ArrayList<Held> messages = null;
+			synchronized (this) {
+				before = emitted;
+				if (holding)
+					held = new ArrayList<Held>();
+				step();
+				output = emitted != before;
+				if (holding) {
+					messages = held;
+					held = null;
+				}
+			}
+			if (messages != null)
+				release(messages);
+			Runnable listener = stepListener;
+			if (listener != null)
+				listener.run();
+			if (pace == Pace.REALTIME) {
+				next += stepNanos;
+				long delay = next - System.nanoTime();
+				if (delay > 0)
+					LockSupport.parkNanos(delay);
+			} else if (output && client == null) {
+				awaitQuiescence();
+			}
+		}
+	}
+
+	/*
+	 * Waits until all output has been consumed and no command has been
+	 * received for the settle time.
+	 */
+	private void awaitQuiescence() {
+		long quietSince = System.nanoTime();
+		while (running) {
+			long now = System.nanoTime();
+			if (!toClient.drained())
+				quietSince = now;
+			else if (now - Math.max(quietSince, lastCommandNanos) >= settleNanos)
+				return;
+			LockSupport.parkNanos(settleNanos / 8 + 1);
+		}
+	}
+
+	/*
+	 * Passes the messages of a step on to the attached controller one at a
+	 * time, each once it has reacted to the ones before, so that reactions
+	 * to messages of the same step do not race each other, nor with what the
+	 * step listener wakes up.
+	 */
+	private void release(ArrayList<Held> messages) {
+		for (int i = 0; i < messages.size() && running; i++) {
+			Held message = messages.get(i);
+			synchronized (this) {
+				if (message.sensed != null)
+					message.sensed.sensorEvents++;
+				toClient.write(message.line);
+			}
+			awaitController();
+		}
+	}
+
+	/*
+	 * Waits until the attached controller has taken all messages and waits
+	 * for more or is parked, for every train that has a controller or is
+	 * moving. A controller that does neither for STALL_NANOS is counted as a
+	 * stall and left behind.
+	 */
+	private void awaitController() {
+		long since = System.nanoTime();
+		int spins = 0;
+		while (running && !controllerIdle()) {
+			if (System.nanoTime() - since > STALL_NANOS) {
+				stalls++;
+				return;
+			}
+			if (++spins < 100)
+				Thread.yield();
+			else
+				LockSupport.parkNanos(10000);
+		}
+	}
+
+	private synchronized boolean controllerIdle() {
+		if (!toClient.drained())
+			return false;
+		for (SimulatedTrain t : trains)
+			if (!t.crashed && (t.targetSpeed != 0 || client.isControlled(t.id))
+					&& !client.isWaitingForSimulator(t.id, t.sensorEvents))
+				return false;
+		return true;
+	}
+
+	/* Moves every train one step. Called with the simulator lock held. */
+	private void step() {
+		for (SimulatedTrain t : trains) {
+			if (t.crashed)
+				continue;
+			t.speed += Math.max(-ACCELERATION, Math.min(ACCELERATION, t.targetSpeed - t.speed));
+			if (t.speed == 0) {
+				t.progress = 0;
+				continue;
+			}
+			t.progress += Math.abs(t.speed) * TILES_PER_SPEED_UNIT;
+			while (t.progress >= 1 && !t.crashed) {
+				t.progress -= 1;
+				advance(t, t.speed > 0);
+			}
+		}
+	}
+
+	/* Moves train t one tile forward or backward. */
+	private void advance(SimulatedTrain t, boolean forward) {
+		int[] end = forward ? t.cells.peekFirst() : t.cells.peekLast();
+		int side = forward ? end[2] : end[1];
+		if (side == TrackMap.STOP) {
+			crash(t, "StopCollisionEvent");
+			return;
+		}
+
+		int tile = map.neighbour(end[0], side);
+		if (tile < 0) {
+			crash(t, "DerailmentEvent");
+			return;
+		}
+		int enter = TrackMap.opposite(side);
+		int exit = route(tile, enter);
+		if (exit == TrackMap.NO_RAIL) {
+			crash(t, "DerailmentEvent");
+			return;
+		}
+
+		boolean collision = occupancy[tile] > 0 && !occupies(t, tile);
+		boolean enteredSensor = map.sensorAtTile(tile) >= 0 && !occupies(t, tile);
+		int[] left;
+		if (forward) {
+			t.cells.addFirst(new int[] { tile, enter, exit });
+			left = t.cells.pollLast();
+		} else {
+			t.cells.addLast(new int[] { tile, exit, enter });
+			left = t.cells.pollFirst();
+		}
+		occupancy[tile]++;
+		occupancy[left[0]]--;
+
+		if (enteredSensor)
+			sensor(t, tile, "active");
+		if (map.sensorAtTile(left[0]) >= 0 && !occupies(t, left[0]))
+			sensor(t, left[0], "inactive");
+
+		if (collision) {
+			crash(t, "TrainCollisionEvent");
+			for (SimulatedTrain other : trains)
+				if (other != t && !other.crashed && occupies(other, tile))
+					crash(other, "TrainCollisionEvent");
+		}
+	}
+
+	/* The exit side for a train entering tile, given the switch positions. */
+	private int route(int tile, int enterSide) {
+		int sw = map.switchAtTile(tile);
+		return map.route(tile, enterSide, sw < 0 ? TSimInterface.SWITCH_LEFT : switchState[sw]);
+	}
+
+	private boolean occupies(SimulatedTrain t, int tile) {
+		for (int[] cell : t.cells)
+			if (cell[0] == tile)
+				return true;
+		return false;
+	}
+
+	private void crash(SimulatedTrain t, String event) {
+		t.crashed = true;
+		crashes++;
+		t.speed = 0;
+		t.targetSpeed = 0;
+		emit(event + " " + t.id);
+	}
+
+	private void sensor(SimulatedTrain t, int tile, String status) {
+		String line = "Sensor " + t.id + " " + map.tileX(tile) + " " + map.tileY(tile) + " " + status;
+		if (held != null) {
+			emitted++;
+			held.add(new Held(t, line)); // counted once passed on
+			return;
+		}
+		t.sensorEvents++;
+		emit(line);
+	}
+
+	private void emit(String line) {
+		emitted++;
+		if (held != null)
+			held.add(new Held(null, line));
+		else
+			toClient.write(line);
+	}
+
+	/* Places a train with its head on the given tile and its body behind it. */
+	private SimulatedTrain placeTrain(int id) throws IOException {
+		SimulatedTrain t = new SimulatedTrain(id);
+		int tile = map.trainTile(id);
+		int heading = map.trainHeading(id);
+		int back = route(tile, heading);
+		if (back < 0)
+			throw new IOException("train " + id + " is not placed on a rail");
+		t.cells.add(new int[] { tile, back, heading });
+		occupancy[tile]++;
+		for (int i = 1; i < map.trainLength(id); i++) {
+			int[] tail = t.cells.peekLast();
+			int next = tail[1] < 0 ? -1 : map.neighbour(tail[0], tail[1]);
+			if (next < 0)
+				throw new IOException("train " + id + " does not fit on the track");
+			int enter = TrackMap.opposite(tail[1]);
+			int exit = route(next, enter);
+			if (exit == TrackMap.NO_RAIL)
+				throw new IOException("train " + id + " does not fit on the track");
+			t.cells.addLast(new int[] { next, exit, enter });
+			occupancy[next]++;
+		}
+		return t;
+	}
+
+	/* Executes one command line and writes the reply. */
+	private synchronized void command(String line) {
+		lastCommandNanos = System.nanoTime();
+		String[] tok = line.trim().split("\\s+");
+		if (tok[0].isEmpty())
+			return;
+		try {
+			if (tok[0].equals("SetSpeed") && tok.length == 3)
+				emit(setSpeed(Integer.parseInt(tok[1]), Integer.parseInt(tok[2])));
+			else if (tok[0].equals("SetSwitch") && tok.length == 4)
+				emit(setSwitch(Integer.parseInt(tok[1]), Integer.parseInt(tok[2]), tok[3]));
+			else
+				emit("IllegalRailPosStatus");
+		} catch (NumberFormatException e) {
+			emit("IllegalRailPosStatus");
+		}
+	}
+
+	private String setSpeed(int id, int speed) {
+		if (id < 1 || id > trains.length)
+			return "IllegalTrainNoStatus";
+		SimulatedTrain t = trains[id - 1];
+		if (speed != 0 && t.speed != 0 && (speed > 0) != (t.speed > 0))
+			return "IllegalReverseStatus";
+		if (!t.crashed)
+			t.targetSpeed = speed;
+		return "SuccessStatus";
+	}
+
+	private String setSwitch(int x, int y, String dir) {
+		int sw = map.switchAt(x, y);
+		if (sw < 0)
+			return "NoSwitchStatus";
+		if (occupancy[map.switchTile(sw)] > 0)
+			return "IllegalSwitchingStatus";
+		if (dir.equals("LeftSwitch"))
+			switchState[sw] = TSimInterface.SWITCH_LEFT;
+		else if (dir.equals("RightSwitch"))
+			switchState[sw] = TSimInterface.SWITCH_RIGHT;
+		else
+			return "NoSwitchStatus";
+		return "SuccessStatus";
+	}
+
+	/*
+	 * The simulator's standard output: an unbounded byte queue that blocks the
+	 * reader while it is empty.
+	 */
+	private final class ServerOutput extends InputStream {
+		private byte[] buf = new byte[4096];
+		private int head, tail;
+		private boolean closed;
+
+		synchronized void write(String line) {
+			byte[] b = (line + "\n").getBytes(StandardCharsets.US_ASCII);
+			if (tail + b.length > buf.length) {
+				System.arraycopy(buf, head, buf, 0, tail - head);
+				tail -= head;
+				head = 0;
+				if (tail + b.length > buf.length) {
+					byte[] grown = new byte[Math.max(buf.length * 2, tail + b.length)];
+					System.arraycopy(buf, 0, grown, 0, tail);
+					buf = grown;
+				}
+			}
+			System.arraycopy(b, 0, buf, tail, b.length);
+			tail += b.length;
+			notifyAll();
+		}
+
+		synchronized boolean drained() {
+			return head == tail;
+		}
+
+		public synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+		public synchronized int available() {
+			return tail - head;
+		}
+
+		public synchronized int read() throws IOException {
+			if (!await())
+				return -1;
+			return buf[head++] & 0xff;
+		}
+
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!await())
+				return -1;
+			int n = Math.min(len, tail - head);
+			System.arraycopy(buf, head, b, off, n);
+			head += n;
+			return n;
+		}
+
+		private boolean await() throws IOException {
+			try {
+				while (head == tail && !closed)
+					wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException(e.getMessage());
+			}
+			return head != tail;
+		}
+	}
+
+	/* The simulator's standard input: executes every complete line. */
+	private final class CommandSink extends OutputStream {
+		private final StringBuilder line = new StringBuilder();
+
+		public synchronized void write(int b) {
+			if (b == '\n') {
+				command(line.toString());
+				line.setLength(0);
+			} else if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+
+		public synchronized void write(byte[] b, int off, int len) {
+			for (int i = off; i < off + len; i++)
+				write(b[i]);
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package TSim.sim;
+
+import java.util.ArrayDeque;
+
+/**
+ * A train in the headless simulator. The train occupies a fixed number of
+ * tiles; every tile is stored together with the sides the train enters and
+ * leaves it through when moving forward, head first.
+ *
+ */
+
+class SimulatedTrain {
+
+	final int id;
+
+	/* {tile index, entry side, exit side}, head first */
+	final ArrayDeque<int[]> cells = new ArrayDeque<int[]>();
+
+	int targetSpeed;
+	int speed;
+	double progress;
+	boolean crashed;
+	long sensorEvents;
+
+	SimulatedTrain(int id) {
+		this.id = id;
+	}
+}
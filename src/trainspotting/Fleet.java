@@ -0,0 +1,141 @@
+package trainspotting;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The trains a controller drives, read from a fleet description with one
+ * train per line: its id on the map, the direction it starts in, its target
+ * speed and optionally its priority class, 0 if not given. Under the priority
+ * policy, trains of a higher class get sections first (see Reservations).
+ * Blank lines and lines starting with # are skipped:
+ *
+ * <pre>
+ * # id direction speed [priority]
+ * 1 south 15 1
+ * 2 north 10
+ * </pre>
+ *
+ */
+
+public final class Fleet {
+
+    public static final class Entry {
+        public final int trainId;
+        public final Lab1.Direction direction;
+        public final int speed;
+        public final int priority;
+
+        public Entry(int trainId, Lab1.Direction direction, int speed) {
+            this(trainId, direction, speed, 0);
+        }
+
+        public Entry(int trainId, Lab1.Direction direction, int speed, int priority) {
+            this.trainId = trainId;
+            this.direction = direction;
+            this.speed = speed;
+            this.priority = priority;
+        }
+
+        public String toString() {
+            return trainId + " " + direction.name().toLowerCase() + " " + speed + (priority != 0 ? " " + priority : "");
+        }
+    }
+
+    private final List<Entry> entries;
+
+    private Fleet(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the two trains of the original lab: train 1 starting southwards
+     * at the northern station and train 2 northwards at the southern one.
+     */
+    public static Fleet pair(int speed1, int speed2) {
+        List<Entry> entries = new ArrayList<Entry>();
+        entries.add(new Entry(1, Lab1.Direction.SOUTH, speed1));
+        entries.add(new Entry(2, Lab1.Direction.NORTH, speed2));
+        return new Fleet(entries);
+    }
+
+    /**
+     * Loads the fleet description in the given file.
+     *
+     * @param path
+     *            the file to read.
+     * @return the fleet.
+     * @throws IOException
+     *             if the file cannot be read or is not a valid fleet
+     *             description.
+     */
+    public static Fleet load(String path) throws IOException {
+        Reader in = new FileReader(path);
+        try {
+            return parse(in);
+        } catch (IOException e) {
+            throw new IOException(path + ": " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses a fleet description from the given reader.
+     *
+     * @param reader
+     *            the text of the description.
+     * @return the fleet.
+     * @throws IOException
+     *             if reading fails or the text is not a valid fleet
+     *             description.
+     */
+    public static Fleet parse(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<Entry> entries = new ArrayList<Entry>();
+        String line;
+        for (int lineNo = 1; (line = in.readLine()) != null; lineNo++) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] tok = line.split("\\s+");
+            if (tok.length != 3 && tok.length != 4)
+                throw new IOException("line " + lineNo + ": expected id, direction, speed and optionally priority");
+            int trainId, speed, priority;
+            try {
+                trainId = Integer.parseInt(tok[0]);
+                speed = Integer.parseInt(tok[2]);
+                priority = tok.length == 4 ? Integer.parseInt(tok[3]) : 0;
+            } catch (NumberFormatException e) {
+                throw new IOException("line " + lineNo + ": number expected");
+            }
+            Lab1.Direction direction;
+            if (tok[1].equalsIgnoreCase("north"))
+                direction = Lab1.Direction.NORTH;
+            else if (tok[1].equalsIgnoreCase("south"))
+                direction = Lab1.Direction.SOUTH;
+            else
+                throw new IOException("line " + lineNo + ": unknown direction " + tok[1]);
+            for (Entry e : entries)
+                if (e.trainId == trainId)
+                    throw new IOException("line " + lineNo + ": train " + trainId + " listed twice");
+            entries.add(new Entry(trainId, direction, speed, priority));
+        }
+        if (entries.isEmpty())
+            throw new IOException("no trains");
+        return new Fleet(entries);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -1,316 +1,623 @@
 package trainspotting;
 
 import TSim.*;
+import TSim.map.TrackMap;
+import TSim.map.TrackMapParser;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Lab1 {
 
+    private final TrackMap map;
+    private final Rules rules;
+    private final TravelClock clock; // time per tile, learned from the trains
+    private final SimClock time; // what the trains go by
+    private final TSimInterface tsi;
+    private final TrainScope trains; // null in reactor mode
+    private final Reactor reactor; // null unless in reactor mode
+    private final AtomicInteger stationStops = new AtomicInteger();
+    private final int maxSpeed; // the fastest a train may go
+    private final long dwellMillis; // time spent at a station, negative for 1000 plus 20 per unit of speed
+
+    static final int DEFAULT_MAX_SPEED = 17;
+
+    // How the trains are run: on a platform or virtual thread each, or all by one dispatcher thread
+    public enum Mode {
+        PLATFORM, VIRTUAL, REACTOR
+    }
+
+    // Starts the two trains of the lab on Lab1.map of the working directory, with the rules of Lab1.rules next to
+    // it, as before maps and rules were given
     public Lab1(Integer speed1, Integer speed2) {
-        TSimInterface tsi = TSimInterface.getInstance();
-        int trainId1 = 1, trainId2 = 2;
-        // Initializing instances of 2 trains which are defined as separate threads and starting them
-        Train train1 = new Train(trainId1, speed1, tsi, Direction.SOUTH);
-        Train train2 = new Train(trainId2, speed2, tsi, Direction.NORTH);
-        train1.start();
-        train2.start();
+        this(load(), speed1, speed2);
     }
 
-    public enum Direction {
-        NORTH, SOUTH
-    }; // Directional enumerators
+    private Lab1(TrackMap map, Integer speed1, Integer speed2) {
+        this(map, load(map), speed1, speed2);
+    }
+
+    public Lab1(TrackMap map, Rules rules, Integer speed1, Integer speed2) {
+        this(map, rules, Fleet.pair(speed1, speed2), Mode.PLATFORM);
+    }
+
+    // Starts every train of the fleet, driven by the rules for the map. Trains must start where the rules
+    // expect them, e.g. in a station lane heading away from the station.
+    public Lab1(TrackMap map, Rules rules, Fleet fleet, Mode mode) {
+        this(map, rules, fleet, mode, SimClock.REAL);
+    }
+
+    // The same, with the trains going by the given clock
+    Lab1(TrackMap map, Rules rules, Fleet fleet, Mode mode, SimClock time) {
+        this(map, rules, fleet, mode, time, TSimInterface.getInstance());
+    }
 
-    public enum Control {
-        CROSSROAD(), STATION_LANE_NN(), SINGLE_LANE_N(), FAST_LANE(), SINGLE_LANE_S(), STATION_LANE_SN();
-        private Semaphore node;
+    // The same, driving the trains of the given client; each client needs rules of its own
+    Lab1(TrackMap map, Rules rules, Fleet fleet, Mode mode, SimClock time, TSimInterface tsi) {
+        this(map, rules, fleet, mode, time, tsi, DEFAULT_MAX_SPEED, -1);
+    }
 
-        private Control() {
-            node = new Semaphore(1);
+    // The same, with the limits varied by experiments such as Sweep: the fastest a train may go, and the time
+    // spent at a station in milliseconds, or a negative time for the default
+    Lab1(TrackMap map, Rules rules, Fleet fleet, Mode mode, SimClock time, TSimInterface tsi, int maxSpeed,
+            long dwellMillis) {
+        this.map = map;
+        this.rules = rules;
+        this.clock = new TravelClock(map);
+        this.time = time;
+        this.maxSpeed = maxSpeed;
+        this.dwellMillis = dwellMillis;
+        rules.reservations.setClock(time);
+        for (Fleet.Entry train : fleet.getEntries())
+            if (train.trainId < 1 || train.trainId > map.getTrainCount())
+                throw new IllegalArgumentException("map has no train " + train.trainId);
+        this.tsi = tsi;
+        for (Fleet.Entry train : fleet.getEntries())
+            subscribe(train.trainId);
+        if (mode == Mode.REACTOR) {
+            // Sensor events are handled by the thread reading them, one train's state machine at a time
+            trains = null;
+            reactor = new Reactor(map.getTrainCount(), time);
+            ArrayList<Train> fleetTrains = new ArrayList<Train>();
+            for (Fleet.Entry entry : fleet.getEntries()) {
+                Train train = new Train(entry.trainId, entry.speed, entry.direction, entry.priority);
+                reactor.register(train.TRAIN_ID, train::dispatch);
+                fleetTrains.add(train);
+            }
+            tsi.setEventHandler(reactor);
+            for (Train train : fleetTrains)
+                reactor.execute(train::start);
+        } else {
+            // Initializing instances of the trains which run as separate tasks and starting them
+            reactor = null;
+            trains = new TrainScope(mode == Mode.VIRTUAL);
+            for (Fleet.Entry train : fleet.getEntries())
+                trains.fork(new Train(train.trainId, train.speed, train.direction, train.priority));
         }
     }
 
-    public enum Sensor { // Sensor enumerators corresponding to the map sensors
-        // Station sensors
-        STATION_NN(15, 3), STATION_NS(15, 5), STATION_SN(15, 11), STATION_SS(15, 13),
-        // Crossroad sensors
-        CROSSROAD_N(9, 5), CROSSROAD_S(10, 8), CROSSROAD_W(6, 7), CROSSROAD_E(10, 7),
-        // Station lane sensors
-        STATION_LANE_NN(15, 7), STATION_LANE_NS(15, 8), STATION_LANE_SN(5, 11), STATION_LANE_SS(4, 13),
-        // Middle lane sensors
-        MIDDLE_LANE_NW(6, 9), MIDDLE_LANE_SW(6, 10), MIDDLE_LANE_NE(13, 9), MIDDLE_LANE_SE(13, 10),
-        // Single Lane sensors
-        SINGLE_LANE_S(1, 9), SINGLE_LANE_N(19, 9);
-        private int xPos, yPos;
-
-        private Sensor(int xPos, int yPos) {
-            this.xPos = xPos;
-            this.yPos = yPos;
+    // Lab1.map and its rules, for the constructor of the two trains; a file that cannot be read is an illegal argument
+    private static TrackMap load() {
+        try {
+            return TrackMapParser.load("Lab1.map");
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
     }
 
-    public enum Switch { // Switch enumerators
-        STATION_N(17, 7), STATION_S(3, 11), MIDDLE_LANE_W(4, 9), MIDDLE_LANE_E(15, 9);
-        private int xPos, yPos;
+    private static Rules load(TrackMap map) {
+        try {
+            return Rules.forMap("Lab1.map", map);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
 
-        private Switch(int xPos, int yPos) {
-            this.xPos = xPos;
-            this.yPos = yPos;
+    // A train acts on the first event of each sensor it passes, so it only wants the active ones, for the sensors
+    // of the map: the inactive event that follows is a repeat, and is dropped before it wakes the train
+    private void subscribe(int trainId) {
+        int[] xPos = new int[map.getSensorCount()], yPos = new int[map.getSensorCount()];
+        for (int sensor = 0; sensor < xPos.length; sensor++) {
+            xPos[sensor] = map.tileX(map.sensorTile(sensor));
+            yPos[sensor] = map.tileY(map.sensorTile(sensor));
+        }
+        try {
+            tsi.subscribe(trainId, SensorEvent.ACTIVE, xPos, yPos);
+        } catch (CommandException e) {
+            throw new IllegalArgumentException(e.getMessage());
         }
     }
 
-    class Train extends Thread {
-        private final int TRAIN_ID, MAX_SPEED = 17;
+    /**
+     * Waits until the trains have stopped, which happens once any of them
+     * fails: the others are then stopped as well.
+     *
+     * @return the failure that stopped the trains, or null.
+     */
+    public Throwable join() throws InterruptedException {
+        return reactor != null ? reactor.join() : trains.join();
+    }
+
+    // Returns how many times trains have stopped at a station so far
+    public int getStationStops() {
+        return stationStops.get();
+    }
+
+    // Stops all trains
+    public void shutdown() {
+        if (reactor != null)
+            reactor.shutdown();
+        else
+            trains.shutdown();
+    }
+
+    public enum Direction {
+        NORTH, SOUTH
+    }; // Directional enumerators
+
+    // Sections taken and released and station stops are committed as Flight Recorder events (SectionEvent,
+    // StationEvent), e.g. with java -XX:StartFlightRecording=filename=trains.jfr
+    class Train implements Runnable {
+        private final int TRAIN_ID, MIN_APPROACH_SPEED = 3;
         private int speed;
         private Direction movementDirection;
-        private SensorEvent previousSensorEvent;
-        private TSimInterface tsi;
-        private ArrayList<Semaphore> locks = new ArrayList<Semaphore>();
+        private long previousSensorEvent; // packed, 0 before the first event
+        private final long[] sensorEvents = new long[16]; // packed, filled by drainSensors
+        private final Reservations.Holder holder;
+
+        // Tells the simulator while the train's thread is blocked on the clock or on other trains
+        private final SimClock.Parking parking = new SimClock.Parking() {
+            public void parked() {
+                tsi.parked(TRAIN_ID);
+            }
+
+            public void resumed() {
+                tsi.resumed(TRAIN_ID);
+            }
+        };
+        private ArrayList<Section> locks = new ArrayList<Section>(); // sections reserved by the train
+        private Section approached; // the section the train slowed down for, null while at full speed
+        private long departedAt, tripNanos; // the last departure from a station, moving average of trips
 
-        public Train(int trainId, int speed, TSimInterface tsi, Direction direction) {
+        // The last sensor the train became active on and when, and since when it has been moving steadily
+        private int lastSensorTile = -1;
+        private long lastSensorAt, steadySince;
+
+        // Reactor mode: set while the train waits for a section or at a station, with the events arriving meanwhile
+        private boolean waiting;
+        private final ArrayDeque<Long> backlog = new ArrayDeque<Long>();
+
+        public Train(int trainId, int speed, Direction direction, int priority) {
             TRAIN_ID = trainId;
-            this.tsi = tsi;
             movementDirection = direction;
             this.speed = speed;
+            holder = new Reservations.Holder(trainId, priority, parking);
         }
 
         public void run() {
             try {
                 setSpeed(speed);
+                departed();
+                for (Step step : startSteps())
+                    execute(step);
                 while (true) {
-                    SensorEvent currentSensorEvent = tsi.getSensor(TRAIN_ID);
-                    // Confirm if the latest sensor that the train've passed is a new sensor.
-                    if (previousSensorEvent == null || currentSensorEvent.getXpos() != previousSensorEvent.getXpos()
-                            || currentSensorEvent.getYpos() != previousSensorEvent.getYpos()) {
-                        // If so, proceed to assessing behavior according to the active sensor
-                        sensorActivity(currentSensorEvent.getXpos(), currentSensorEvent.getYpos());
-                        previousSensorEvent = currentSensorEvent;
+                    int count = tsi.drainSensors(TRAIN_ID, sensorEvents);
+                    for (int i = 0; i < count; i++) {
+                        Step[] steps = sensorActivity(sensorEvents[i]);
+                        for (Step step : steps)
+                            execute(step);
                     }
                 }
-            } catch (CommandException | InterruptedException e) {
-                e.printStackTrace();
+            } catch (CommandException | IllegalStateException e) {
+                trains.fail(e); // stops the other trains as well
+            } catch (InterruptedException e) {
+                if (!trains.isShutdown())
+                    trains.fail(e);
             }
         }
 
+        // The steps for the sensor the train starts on, taken as soon as it starts: the sensor only reports the
+        // train leaving it, which the train does not subscribe to. Until then the lane it starts in would not be
+        // its own.
+        private Step[] startSteps() {
+            int tile = map.trainTile(TRAIN_ID);
+            if (map.sensorAtTile(tile) < 0)
+                return NO_STEPS;
+            return sensorActivity(PackedEvent.sensor(TRAIN_ID, map.tileX(tile), map.tileY(tile), SensorEvent.INACTIVE));
+        }
+
         /**
-         * Method that is used for handling train's and railroad' element's
-         * behaviors. Behavior execution is dependent on the latest active
-         * sensor (derived from SensorEvent in the main loop and passed as x & y
-         * coordinates to be compared against enumerated table of sensor
-         * elements) and train's movement direction (traveling to North or South
-         * station).
-         * 
-         * @param xPos: x-Position of the latest active sensor responsible for the event
-         * @param yPos: y-Position of the latest active sensor responsible for the event
-         * @throws CommandException
-         * @throws InterruptedException
+         * Looks up what the train has to do at the sensor it passed.
+         * Behavior is dependent on the latest active sensor and the train's
+         * movement direction (traveling to North or South station), as
+         * given by the rules.
+         *
+         * @param sensorEvent: the packed sensor event
+         * @return the steps to take, none if the sensor was already handled
          */
+        private Step[] sensorActivity(long sensorEvent) {
+            // Confirm if the latest sensor that the train've passed is a new sensor.
+            if (previousSensorEvent != 0 && PackedEvent.samePosition(sensorEvent, previousSensorEvent))
+                return NO_STEPS;
+            previousSensorEvent = sensorEvent;
+            if (PackedEvent.status(sensorEvent) == SensorEvent.ACTIVE)
+                timeTravel(map.tile(PackedEvent.xPos(sensorEvent), PackedEvent.yPos(sensorEvent)));
+            int activeSensor = map.sensorAt(PackedEvent.xPos(sensorEvent), PackedEvent.yPos(sensorEvent));
+            return (activeSensor < 0) ? NO_STEPS : rules.steps(activeSensor, movementDirection);
+        }
 
-        private void sensorActivity(int xPos, int yPos) throws CommandException, InterruptedException {
-            Sensor activeSensor = getSensor(xPos, yPos);
-            if (activeSensor != null) {
-                int switchDirection;
-                if (movementDirection == Direction.SOUTH) {
-                    switch (activeSensor) {
-
-                    case STATION_NN: // Initial departure from Northern station.
-                    case STATION_NS:
-                        if (activeSensor == Sensor.STATION_NN) { // If on northern lane
-                            acquirePriority(Control.STATION_LANE_NN.node); // ensures that it stays reserved
-                        }
-                        break;
-
-                    case CROSSROAD_W: // Entering crossroad
-                    case CROSSROAD_N:
-                        acquirePriority(Control.CROSSROAD.node); // ensure it's reserved by the train
-                        break;
-
-                    case CROSSROAD_E: // Exiting crossroad
-                    case CROSSROAD_S:
-                        releaseLock(Control.CROSSROAD.node);
-                        break;
-
-                    case STATION_LANE_NN: // Exiting station lanes towards the single lane section
-                    case STATION_LANE_NS:
-                        acquirePriority(Control.SINGLE_LANE_N.node); // ensure that the lane´s reserved by Train
-                        switchDirection = (activeSensor == Sensor.STATION_LANE_NN) // Exiting from  N or S?
-                                ? TSimInterface.SWITCH_RIGHT : TSimInterface.SWITCH_LEFT;
-                        setSwitch(Switch.STATION_N, switchDirection); // switch rails accordingly
-                        break;
-
-                    case SINGLE_LANE_N: // Passing the middle of the single lane
-                        switchDirection = tryAcquiringPriority( // attempt to reserve the fast middle lane
-                                Control.FAST_LANE, TSimInterface.SWITCH_RIGHT, TSimInterface.SWITCH_LEFT);
-                        setSwitch(Switch.MIDDLE_LANE_E, switchDirection); // switch to fast or longer lane
-                        releaseLock(Control.STATION_LANE_NN.node); // open access to northern lane
-                        break;
-
-                    case MIDDLE_LANE_NE: // Entering middle lane section
-                    case MIDDLE_LANE_SE:
-                        releaseLock(Control.SINGLE_LANE_N.node); // open access to the single lane
-                        break;
-
-                    case MIDDLE_LANE_NW: // Exiting middle lane section
-                    case MIDDLE_LANE_SW:
-                        acquirePriority(Control.SINGLE_LANE_S.node); // ensure that the lane´s reserved by Train
-                        switchDirection = (activeSensor == Sensor.MIDDLE_LANE_NW) // Exiting from N or S?
-                                ? TSimInterface.SWITCH_LEFT : TSimInterface.SWITCH_RIGHT;
-                        setSwitch(Switch.MIDDLE_LANE_W, switchDirection); // switch rails accordingly
-                        break;
-
-                    case SINGLE_LANE_S: // Passing the middle of the single lane
-                        switchDirection = tryAcquiringPriority( // attempt to reserve the northern lane
-                                Control.STATION_LANE_SN, TSimInterface.SWITCH_LEFT, TSimInterface.SWITCH_RIGHT);
-                        setSwitch(Switch.STATION_S, switchDirection); // switch rails to reserved or alt path
-                        releaseLock(Control.FAST_LANE.node); // open access to the fast middle  lane
-                        break;
-
-                    case STATION_LANE_SN: // Entering one of the station lane.
-                    case STATION_LANE_SS:
-                        releaseLock(Control.SINGLE_LANE_S.node); // opening access to the single lane
-                        break;
-
-                    case STATION_SN: // Arriving to the destination
-                    case STATION_SS:
-                        stationBehavior(); // Initiate arrival behavior: stop, wait, reserve movement
-                        break;
-
-                    default:
-                        break;
-                    }
+        // Tells the clock how long the train took from the last sensor, unless it changed speed in between
+        private void timeTravel(int tile) {
+            long now = time.nanoTime();
+            if (lastSensorTile >= 0 && lastSensorAt >= steadySince)
+                clock.passed(lastSensorTile, tile, now - lastSensorAt, speed);
+            lastSensorTile = tile;
+            lastSensorAt = now;
+        }
 
-                } else if (movementDirection == Direction.NORTH) {
-
-                    // The procedure for the journey repeats to the previous logic
-                    switch (activeSensor) {
-
-                    case STATION_SN:
-                    case STATION_SS:
-                        if (activeSensor == Sensor.STATION_SN) {
-                            acquirePriority(Control.STATION_LANE_SN.node);
-                        }
-                        break;
-
-                    case STATION_LANE_SN:
-                    case STATION_LANE_SS:
-                        acquirePriority(Control.SINGLE_LANE_S.node);
-                        switchDirection = (activeSensor == Sensor.STATION_LANE_SS) ? TSimInterface.SWITCH_RIGHT
-                                : TSimInterface.SWITCH_LEFT;
-                        setSwitch(Switch.STATION_S, switchDirection);
-                        break;
-
-                    case SINGLE_LANE_S:
-                        switchDirection = tryAcquiringPriority(Control.FAST_LANE, TSimInterface.SWITCH_LEFT,
-                                TSimInterface.SWITCH_RIGHT);
-                        setSwitch(Switch.MIDDLE_LANE_W, switchDirection);
-                        releaseLock(Control.STATION_LANE_SN.node);
-                        break;
-
-                    case MIDDLE_LANE_NW:
-                    case MIDDLE_LANE_SW:
-                        releaseLock(Control.SINGLE_LANE_S.node);
-                        break;
-
-                    case MIDDLE_LANE_NE:
-                    case MIDDLE_LANE_SE:
-                        acquirePriority(Control.SINGLE_LANE_N.node);
-                        switchDirection = (activeSensor == Sensor.MIDDLE_LANE_NE) ? TSimInterface.SWITCH_RIGHT
-                                : TSimInterface.SWITCH_LEFT;
-                        setSwitch(Switch.MIDDLE_LANE_E, switchDirection);
-                        break;
-
-                    case SINGLE_LANE_N:
-                        switchDirection = tryAcquiringPriority(Control.STATION_LANE_NN, TSimInterface.SWITCH_RIGHT,
-                                TSimInterface.SWITCH_LEFT);
-                        setSwitch(Switch.STATION_N, switchDirection);
-                        releaseLock(Control.FAST_LANE.node);
-                        break;
-
-                    case STATION_LANE_NN:
-                    case STATION_LANE_NS:
-                        releaseLock(Control.SINGLE_LANE_N.node);
-                        break;
-
-                    case CROSSROAD_E:
-                    case CROSSROAD_S:
-                        acquirePriority(Control.CROSSROAD.node);
-                        break;
-
-                    case CROSSROAD_W:
-                    case CROSSROAD_N:
-                        releaseLock(Control.CROSSROAD.node);
-                        break;
-
-                    case STATION_NN:
-                    case STATION_NS:
-                        stationBehavior();
-                        break;
-
-                    default:
-                        break;
-                    }
-                }
-            }
+        // Notes that the train stopped or changed speed, so its travel times are not steady
+        private void speedChanged() {
+            steadySince = time.nanoTime();
         }
 
-        // Rail switch setting command. Encapsulated for the better code readability in the main body
-        public void setSwitch(Switch railSwitch, int direction) throws CommandException {
-            tsi.setSwitch(railSwitch.xPos, railSwitch.yPos, direction);
+        // Performs one step, blocking the thread while the train waits
+        private void execute(Step step) throws CommandException, InterruptedException {
+            switch (step.op) {
+            case ACQUIRE:
+                acquirePriority(step.sections);
+                break;
+            case APPROACH:
+                int approachSpeed = approach(step);
+                if (approachSpeed != speed)
+                    tsi.setSpeed(TRAIN_ID, approachSpeed);
+                break;
+            case TAKE_LANE:
+                takeLane(step.region);
+                break;
+            case RELEASE:
+                releaseLock(step.section);
+                break;
+            case RELEASE_LANE:
+                releaseLane(step.region);
+                break;
+            case SWITCH:
+                tsi.setSwitch(step.xPos, step.yPos, step.direction);
+                break;
+            case SWITCH_FOR_LANE:
+                tsi.setSwitch(step.xPos, step.yPos, locks.contains(step.lane) ? step.direction : step.otherDirection);
+                break;
+            case STATION:
+                stationBehavior();
+                break;
+            }
         }
 
         // Sets speed of the train while ensuring that it doesn't go over the MAX limit
         public void setSpeed(int speed) throws CommandException {
-            if (Math.abs(speed) > MAX_SPEED) {
-                speed = MAX_SPEED * (int) Math.signum(speed);
+            tsi.setSpeed(TRAIN_ID, limit(speed));
+        }
+
+        private int limit(int speed) {
+            if (Math.abs(speed) > maxSpeed) {
+                speed = maxSpeed * (int) Math.signum(speed);
             }
+            if (speed != this.speed)
+                speedChanged();
             this.speed = speed;
-            tsi.setSpeed(TRAIN_ID, this.speed);
+            return speed;
         }
 
-        // Makes sure that the active sensor exists in the mapping
-        private Sensor getSensor(int xPos, int yPos) {
-            for (Sensor s : Sensor.values()) {
-                if (s.xPos == xPos && s.yPos == yPos) {
-                    return s;
-                }
-            }
-            return null;
+        // Time spent at a station, in the time of the simulation
+        private long dwellMillis() {
+            return dwellMillis >= 0 ? dwellMillis : 1000 + (20 * Math.abs(speed));
         }
 
-        // Station arrival, halt and departure behavior for the train. Time for
-        // departure remains persistent regardless of the simulation's speed.
+        // Station arrival, halt and departure behavior for the train.
         private void stationBehavior() throws CommandException, InterruptedException {
+            StationEvent event = new StationEvent();
+            event.begin();
             tsi.setSpeed(TRAIN_ID, 0);
-            Train.sleep(1000 + (20 * Math.abs(speed)));
+            arrived();
+            stationStops.incrementAndGet();
+            time.sleep(dwellMillis(), parking);
             movementDirection = (movementDirection == Direction.NORTH) ? Direction.SOUTH : Direction.NORTH;
             setSpeed(-speed);
+            departed();
+            event.commit(TRAIN_ID, previousSensorEvent, movementDirection);
         }
 
-        // Semaphore and lock acquisition logic.
-        private void acquirePriority(Semaphore semaphore) throws InterruptedException, CommandException {
-            if (!locks.contains(semaphore)) {
+        // Notes the departure from a station; the train is due at the next one as long after as trips took
+        private void departed() {
+            departedAt = time.nanoTime();
+            holder.deadline = departedAt + tripNanos;
+        }
+
+        private void arrived() {
+            long trip = time.nanoTime() - departedAt;
+            tripNanos = tripNanos == 0 ? trip : tripNanos + (trip - tripNanos) / 5;
+        }
+
+        // Semaphore and lock acquisition logic: all sections are reserved at once. The train only stops if
+        // one is taken, and speeds up again if it slowed down for one. The time blocked is recorded for the
+        // sections.
+        private void acquirePriority(Section[] sections) throws InterruptedException, CommandException {
+            Section[] needed = notHeld(sections);
+            if (needed.length == 0) {
+                rules.reservations.tryAcquire(holder, sections); // the ones reserved ahead are for good now
+                return;
+            }
+            SectionEvent event = new SectionEvent();
+            event.begin();
+            long start = time.nanoTime();
+            boolean resume = false;
+            if (!rules.reservations.tryAcquire(holder, sections)) {
                 tsi.setSpeed(TRAIN_ID, 0);
-                semaphore.acquire();
-                locks.add(semaphore);
+                rules.reservations.acquire(holder, sections, -1);
+                resume = true;
+            }
+            resume |= acquired(needed, event, time.nanoTime() - start, previousSensorEvent);
+            if (resume) {
+                speedChanged();
                 setSpeed(speed);
             }
         }
 
-        // Semaphore and lock acquisition in cases where an alternative path is available if a priority cannot be secured.
-        private int tryAcquiringPriority(Control semaphore, int acquiredDirection, int alternativeDirection) {
-            if (semaphore.node.tryAcquire()) {
-                locks.add(semaphore.node);
-                return acquiredDirection;
-            } else {
-                return alternativeDirection;
+        // The sections the train does not hold
+        private Section[] notHeld(Section[] sections) {
+            int count = 0;
+            for (Section section : sections)
+                if (!rules.reservations.holds(holder, section))
+                    count++;
+            if (count == sections.length)
+                return sections;
+            Section[] needed = new Section[count];
+            count = 0;
+            for (Section section : sections)
+                if (!rules.reservations.holds(holder, section))
+                    needed[count++] = section;
+            return needed;
+        }
+
+        // Records sections granted after the given wait; returns true if the train had slowed down for one
+        private boolean acquired(Section[] sections, SectionEvent event, long waited, long sensorEvent) {
+            boolean wasApproached = false;
+            for (Section section : sections) {
+                section.waits.record(waited);
+                if (!locks.contains(section))
+                    locks.add(section);
+                wasApproached |= section == approached;
+            }
+            event.commit(SectionEvent.ACQUIRE, TRAIN_ID, sections, sensorEvent);
+            if (wasApproached)
+                approached = null;
+            return wasApproached;
+        }
+
+        // Reserves the section ahead if it is free, unless the train already slowed down for another one.
+        // Otherwise returns the speed at which the train arrives at the sensor where it has to stop about
+        // when the section is expected to be free, the current speed if that is soon enough.
+        private int approach(Step step) {
+            Section section = step.section;
+            if (approached != null || locks.contains(section))
+                return speed;
+            if (rules.reservations.reserveAhead(holder, section)) {
+                section.waits.record(0);
+                new SectionEvent().commit(SectionEvent.ACQUIRE, TRAIN_ID, section, previousSensorEvent);
+                locks.add(section);
+                return speed;
+            }
+            approached = section;
+            int full = Math.abs(speed), slowest = Math.min(full, MIN_APPROACH_SPEED), approach;
+            long free = section.expectedFreeNanos(time.nanoTime());
+            long fullSpeedNanos = clock.nanos(step.tiles, speed);
+            if (free < 0 || fullSpeedNanos == 0)
+                approach = full / 2; // nothing to go by yet
+            else if (free <= fullSpeedNanos)
+                approach = full;
+            else
+                approach = (int) (full * fullSpeedNanos / free);
+            approach = Math.max(slowest, Math.min(full, approach)) * (int) Math.signum(speed);
+            if (approach != speed)
+                speedChanged();
+            return approach;
+        }
+
+        // Reserves one lane of the region, the primary one if it is free or, in a timed region, soon will
+        // be. The region permit is already held.
+        private void takeLane(Rules.Region region) throws InterruptedException, CommandException {
+            if (heldLane(region) != null)
+                return;
+            boolean primary = region.primary.tryAcquire(holder);
+            long wait = primary ? 0 : primaryWaitNanos(region);
+            if (wait > 0) {
+                tsi.setSpeed(TRAIN_ID, 0);
+                primary = region.primary.acquire(holder, wait);
+                speedChanged();
+                setSpeed(speed);
+            }
+            tookLane(region, primary);
+        }
+
+        // Returns how long to wait for the primary lane of the region, held by another train: as long as
+        // the detour through the secondary lane would take longer, if the primary lane is expected to be
+        // free before then, otherwise 0
+        private long primaryWaitNanos(Rules.Region region) {
+            if (!region.isTimed() || !clock.isCalibrated())
+                return 0;
+            long detour = clock.nanos(region.secondaryLength - region.primaryLength, speed);
+            return region.primaryClearNanos(time.nanoTime(), clock) < detour ? detour : 0;
+        }
+
+        // Records the lane taken, the primary one or else the secondary one, which the region permit
+        // guarantees to be free
+        private void tookLane(Rules.Region region, boolean primary) {
+            Section lane = primary ? region.primary : region.secondary;
+            if (!primary && !lane.tryAcquire(holder))
+                throw new IllegalStateException("no free lane in " + region);
+            if (primary)
+                region.tookPrimary(time.nanoTime(), speed);
+            new SectionEvent().commit(SectionEvent.TAKE_LANE, TRAIN_ID, lane, previousSensorEvent);
+            locks.add(lane);
+        }
+
+        // Returns the lane of the region reserved by the train, or null
+        private Section heldLane(Rules.Region region) {
+            if (locks.contains(region.primary))
+                return region.primary;
+            if (locks.contains(region.secondary))
+                return region.secondary;
+            return null;
+        }
+
+        // Releases the lane of the region reserved by the train
+        private void releaseLane(Rules.Region region) {
+            Section lane = heldLane(region);
+            if (lane != null) {
+                if (lane == region.primary)
+                    region.leftPrimary(time.nanoTime());
+                releaseLock(lane);
+                releaseLock(region.lanes);
             }
         }
 
         // Semaphore and lock releasing logic.
-        private void releaseLock(Semaphore semaphore) {
-            if (locks.contains(semaphore)) {
-                locks.remove(semaphore);
-                semaphore.release();
+        private void releaseLock(Section section) {
+            if (locks.contains(section)) {
+                locks.remove(section);
+                section.release(holder); // nothing to do if it was taken back
+                new SectionEvent().commit(SectionEvent.RELEASE, TRAIN_ID, section, previousSensorEvent);
+            }
+        }
+
+        // Reactor mode: sets the initial speed
+        void start() {
+            reactor.check(tsi.setSpeedAsync(TRAIN_ID, limit(speed)));
+            departed();
+            proceed(startSteps(), 0);
+        }
+
+        // Reactor mode: handles a sensor event on the dispatcher thread
+        void dispatch(long sensorEvent) {
+            if (waiting)
+                backlog.add(sensorEvent);
+            else
+                proceed(sensorActivity(sensorEvent), 0);
+        }
+
+        // Reactor mode: performs the steps from index i on until one has to wait, then handles the backlog
+        private void proceed(Step[] steps, int i) {
+            for (; i < steps.length; i++) {
+                if (!react(steps, i)) {
+                    waiting = true;
+                    return;
+                }
             }
+            waiting = false;
+            while (!waiting && !backlog.isEmpty())
+                proceed(sensorActivity(backlog.poll()), 0);
+        }
+
+        // Reactor mode: performs one step without blocking; returns false if the train has to wait, in
+        // which case the remaining steps are continued once it may go on
+        private boolean react(final Step[] steps, final int i) {
+            Step step = steps[i];
+            switch (step.op) {
+            case ACQUIRE:
+                final Section[] needed = notHeld(step.sections);
+                if (needed.length == 0) {
+                    rules.reservations.tryAcquire(holder, step.sections);
+                    return true;
+                }
+                final SectionEvent event = new SectionEvent();
+                event.begin();
+                final long start = time.nanoTime(), sensorEvent = previousSensorEvent;
+                Runnable granted = () -> reactor.post(() -> {
+                    acquired(needed, event, time.nanoTime() - start, sensorEvent);
+                    speedChanged();
+                    reactor.check(tsi.setSpeedAsync(TRAIN_ID, speed));
+                    proceed(steps, i + 1);
+                });
+                if (rules.reservations.acquireOrWait(holder, step.sections, granted)) {
+                    if (acquired(needed, event, 0, sensorEvent)) {
+                        speedChanged();
+                        reactor.check(tsi.setSpeedAsync(TRAIN_ID, speed));
+                    }
+                    return true;
+                }
+                reactor.check(tsi.setSpeedAsync(TRAIN_ID, 0));
+                return false;
+            case APPROACH:
+                int approachSpeed = approach(step);
+                if (approachSpeed != speed)
+                    reactor.check(tsi.setSpeedAsync(TRAIN_ID, approachSpeed));
+                return true;
+            case TAKE_LANE:
+                final Rules.Region region = step.region;
+                if (heldLane(region) != null)
+                    return true;
+                if (region.primary.tryAcquire(holder)) {
+                    tookLane(region, true);
+                    return true;
+                }
+                long wait = primaryWaitNanos(region);
+                if (wait == 0) {
+                    tookLane(region, false);
+                    return true;
+                }
+                // Waits for the primary lane until the detour would have been quicker
+                final Runnable laneGranted = () -> reactor.post(() -> resumeInLane(region, true, steps, i));
+                if (region.primary.acquireOrWait(holder, laneGranted, true)) {
+                    tookLane(region, true);
+                    return true;
+                }
+                reactor.check(tsi.setSpeedAsync(TRAIN_ID, 0));
+                reactor.schedule(TimeUnit.NANOSECONDS.toMillis(wait) + 1, () -> {
+                    if (region.primary.cancel(laneGranted))
+                        resumeInLane(region, false, steps, i);
+                });
+                return false;
+            case SWITCH:
+                reactor.check(tsi.setSwitchAsync(step.xPos, step.yPos, step.direction));
+                return true;
+            case SWITCH_FOR_LANE:
+                reactor.check(tsi.setSwitchAsync(step.xPos, step.yPos,
+                        locks.contains(step.lane) ? step.direction : step.otherDirection));
+                return true;
+            case STATION:
+                final StationEvent stop = new StationEvent();
+                stop.begin();
+                final long stationSensor = previousSensorEvent;
+                reactor.check(tsi.setSpeedAsync(TRAIN_ID, 0));
+                arrived();
+                stationStops.incrementAndGet();
+                reactor.schedule(dwellMillis(), () -> {
+                    movementDirection = (movementDirection == Direction.NORTH) ? Direction.SOUTH : Direction.NORTH;
+                    reactor.check(tsi.setSpeedAsync(TRAIN_ID, limit(-speed)));
+                    departed();
+                    stop.commit(TRAIN_ID, stationSensor, movementDirection);
+                    proceed(steps, i + 1);
+                });
+                return false;
+            default:
+                try {
+                    execute(step); // the remaining operations never block
+                } catch (CommandException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return true;
+            }
+        }
+
+        // Reactor mode: takes a lane the train stopped for and goes on with the steps after step i
+        private void resumeInLane(Rules.Region region, boolean primary, Step[] steps, int i) {
+            tookLane(region, primary);
+            speedChanged();
+            reactor.check(tsi.setSpeedAsync(TRAIN_ID, speed));
+            proceed(steps, i + 1);
         }
     }
-}
\ No newline at end of file
+
+    private static final Step[] NO_STEPS = {};
+}
@@ -1,32 +1,111 @@
 package trainspotting;
 import java.io.IOException;
+import java.util.Map;
 
 import TSim.CommandException;
+import TSim.LatencyHistogram;
+import TSim.ProtocolRecorder;
+import TSim.ProtocolReplay;
 import TSim.TSimInterface;
+import TSim.map.TrackMap;
+import TSim.map.TrackMapParser;
+import TSim.sim.HeadlessSimulator;
 
 public class Main {
 
 	/**
-	 * The main method expects 3-4 arguments, e.g.:
+	 * The main method expects 3-6 arguments, e.g.:
 	 * - command line: java -cp bin Main "Lab1.map" 5 10 20
 	 * -   in Eclipse: add them from Run Configurations -> Arguments
+	 * Instead of the two speeds, a fleet description file listing the trains
+	 * to run may be given (see Fleet), e.g. Main "Lab1.map" fleet.txt 20.
+	 * The trains follow the rules in the file next to the map, e.g.
+	 * Lab1.rules for Lab1.map (see Rules).
+	 * The optional fifth argument selects the simulator: "tsim" (default) runs
+	 * the external binary, "headless" the in-process simulator in real time and
+	 * "fast" the in-process simulator as fast as possible. "replay:run.tlog"
+	 * plays back a recording at its original pace and "replay-fast:run.tlog"
+	 * as fast as possible (see ProtocolReplay).
+	 * The optional sixth argument selects how the trains are run: "platform"
+	 * (default) or "virtual" runs each on a thread of that kind, "reactor"
+	 * runs all of them on the thread reading events from the simulator.
+	 * The latencies measured while running are printed when the program exits.
+	 * With -Dtsim.record=run.tlog, everything exchanged with the simulator is
+	 * recorded to that file (see ProtocolRecorder).
+	 * With -Dtrainspotting.runSeconds=N, the in-process simulator is stopped
+	 * after N seconds of the time the trains go by, a line
+	 * "run: ok|<failure>, <stops> station stops in N s" is printed to stderr
+	 * and the program exits, with status 1 if a train failed. With "fast",
+	 * that is N seconds of the simulation, however long they take.
+	 * The trains go by real time with tsim and recordings, as they always
+	 * have, and by the time of the in-process simulation otherwise (see
+	 * SimClock): real time scaled to the simulator speed with "headless", the
+	 * steps the simulator has taken with "fast".
+	 * -Dtrainspotting.clock=real|scaled|virtual picks another one, e.g. scaled
+	 * to keep station stops as long as at the default speed with tsim;
+	 * virtual needs the in-process simulator.
 	 */
 	public static void main(String[] args) {
 		try {
 			String map = args[0];
-			Integer train1_speed = Integer.parseInt(args[1]);
-			Integer train2_speed = Integer.parseInt(args[2]);
-			Integer tsim_speed = (args.length >= 4) ? Integer.parseInt(args[3]) : 20;
-			
-			String tsimCommand = String.format("/chalmers/groups/tda381/bin/tsim --speed=%d %s", tsim_speed, map);
-			Process p = Runtime.getRuntime().exec(tsimCommand);
-			TSimInterface.init(p.getInputStream(), p.getOutputStream());
-			TSimInterface.getInstance().setDebug(true);
-			new Lab1(train1_speed, train2_speed);
-			p.waitFor();
+			Fleet fleet;
+			int next; // index of the first optional argument
+			if (args[1].matches("-?\\d+")) {
+				fleet = Fleet.pair(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+				next = 3;
+			} else {
+				fleet = Fleet.load(args[1]);
+				next = 2;
+			}
+			Integer tsim_speed = (args.length > next) ? Integer.parseInt(args[next]) : 20;
+			String simulator = (args.length > next + 1) ? args[next + 1] : "tsim";
+			Lab1.Mode mode = (args.length > next + 2) ? Lab1.Mode.valueOf(args[next + 2].toUpperCase()) : Lab1.Mode.PLATFORM;
+			TrackMap trackMap = TrackMapParser.load(map);
+			Rules rules = Rules.forMap(map, trackMap);
+
+			if (simulator.equals("tsim")) {
+				String tsimCommand = String.format("/chalmers/groups/tda381/bin/tsim --speed=%d %s", tsim_speed, map);
+				Process p = Runtime.getRuntime().exec(tsimCommand);
+				TSimInterface.init(p.getInputStream(), p.getOutputStream(), trackMap.getTrainCount());
+				TSimInterface.getInstance().setDebug(true);
+				startRecording(TSimInterface.getInstance());
+				printMetricsOnExit(TSimInterface.getInstance(), rules);
+				new Lab1(trackMap, rules, fleet, mode, clock("real", tsim_speed, null));
+				p.waitFor();
+			} else if (simulator.startsWith("replay:") || simulator.startsWith("replay-fast:")) {
+				ProtocolReplay replay = new ProtocolReplay(simulator.substring(simulator.indexOf(':') + 1),
+						simulator.startsWith("replay:"));
+				TSimInterface.init(replay.getInputStream(), replay.getOutputStream(), trackMap.getTrainCount());
+				TSimInterface.getInstance().setDebug(true);
+				startRecording(TSimInterface.getInstance());
+				printMetricsOnExit(TSimInterface.getInstance(), rules);
+				new Lab1(trackMap, rules, fleet, mode, clock("real", tsim_speed, null)).join(); // exits at the end of the recording
+			} else {
+				HeadlessSimulator sim = new HeadlessSimulator(trackMap, simulator.equals("fast")
+						? HeadlessSimulator.Pace.FAST : HeadlessSimulator.Pace.REALTIME, tsim_speed);
+				TSimInterface tsi = TSimInterface.open(sim.getInputStream(), sim.getOutputStream(),
+						trackMap.getTrainCount());
+				tsi.setDebug(true);
+				sim.attach(tsi);
+				startRecording(tsi);
+				printMetricsOnExit(tsi, rules);
+				SimClock clock = clock(simulator.equals("fast") ? "virtual" : "scaled", tsim_speed, sim);
+				Lab1 lab = new Lab1(trackMap, rules, fleet, mode, clock, tsi);
+				Integer runSeconds = Integer.getInteger("trainspotting.runSeconds");
+				if (runSeconds != null)
+					clock.schedule(runSeconds * 1000L, lab::shutdown);
+				sim.start(); // once the trains have been set up, so that no time passes before they start
+				Throwable failure = lab.join(); // only returns once a train has failed, or after runSeconds
+				sim.stop();
+				sim.waitFor();
+				if (runSeconds != null)
+					System.err.println("run: " + (failure == null ? "ok" : failure.getMessage()) + ", "
+							+ lab.getStationStops() + " station stops in " + runSeconds + " s");
+				System.exit(failure == null ? 0 : 1);
+			}
 			
 		} catch (ArrayIndexOutOfBoundsException e) {
-			System.err.println("Main method expects 3-4 arguments: Lab1.map <Train1Speed> <Train2Speed> [SimulatorSpeed]");
+			System.err.println("Main method expects 3-6 arguments: Lab1.map (<Train1Speed> <Train2Speed> | <FleetFile>) [SimulatorSpeed] [tsim|headless|fast|replay:<Log>|replay-fast:<Log>] [platform|virtual|reactor]");
 		} catch (IOException e) {
 			e.printStackTrace();
 		} catch (InterruptedException e) {
@@ -34,4 +113,51 @@ public class Main {
 		}
 	}
 
+	// Returns the clock named by the trainspotting.clock property, or else by the given default. A virtual clock
+	// is advanced by the in-process simulator, null with the external one.
+	private static SimClock clock(String defaultName, int tsimSpeed, HeadlessSimulator sim) {
+		String name = System.getProperty("trainspotting.clock", defaultName);
+		if (name.equals("virtual") && sim != null)
+			return SimClock.Virtual.steppedBy(sim);
+		if (name.equals("virtual"))
+			System.err.println("a virtual clock needs the in-process simulator, scaling real time instead");
+		else if (name.equals("real"))
+			return SimClock.REAL;
+		else if (!name.equals("scaled"))
+			throw new IllegalArgumentException("unknown clock " + name);
+		return SimClock.scaled(tsimSpeed);
+	}
+
+	// Records the session to the file named by the tsim.record property, if set, until the JVM exits
+	private static void startRecording(TSimInterface tsi) throws IOException {
+		String path = System.getProperty("tsim.record");
+		if (path == null)
+			return;
+		final ProtocolRecorder recorder = new ProtocolRecorder(path);
+		tsi.setRecorder(recorder);
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				try {
+					recorder.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}));
+	}
+
+	// Prints the command, sensor and section wait latencies and how reservations went when the JVM exits,
+	// however it exits
+	private static void printMetricsOnExit(final TSimInterface tsi, final Rules rules) {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				System.err.println(tsi.getMetrics());
+				for (Map.Entry<String, LatencyHistogram> waits : rules.getSectionWaits().entrySet())
+					System.err.println("waits for " + waits.getKey() + ": " + waits.getValue().snapshot());
+				System.err.println("reservations (" + rules.reservations.getPolicy().name().toLowerCase()
+						+ "): " + rules.reservations.getRevoked() + " taken back to break wait cycles");
+			}
+		}));
+	}
+
 }
@@ -0,0 +1,697 @@
+package trainspotting;
+
+import TSim.TSimInterface;
+import TSim.map.TrackMap;
+import TSim.sim.HeadlessSimulator;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The controller of Lab1 driving a fleet on a map, as a transition system
+ * for ModelCheck. A state holds the switches and, for each train, where it
+ * is, where it is heading, which step of its rules it is at, the sensor
+ * events it has not handled yet and the sections it holds, bit-packed into a
+ * few longs. A transition is one thing a single train does:
+ *
+ * - move: enter the next tile while running, or while still braking after
+ *   it has been told to stop, and handle the sensor events this causes,
+ * - rest: come to a halt before braking has taken it as far as it could,
+ * - depart: head back from a station once standing still,
+ * - grant: get the sections it waits for once all of them are free.
+ *
+ * Trains move one tile at a time in any order, which covers any speeds the
+ * trains may go at relative to each other; the speed of each train only
+ * decides how far it may still go when stopping. The controller reacts to a
+ * sensor before the train moves on, as with the in-process simulator in fast
+ * mode.
+ *
+ * Reservations are modelled as they work, except that waiting trains get the
+ * sections as soon as they are free, in any order rather than by policy, and
+ * that a train finding the primary lane of a region taken always takes the
+ * other one instead of waiting for it. A reservation ahead of time taken
+ * back to let trains waiting for each other go on is taken from the train
+ * that waited last, or else from the one with the highest id.
+ *
+ */
+
+final class Model {
+
+    // Per train fields of a state
+    private static final int TILE = 0, ENTRY = 1, DIR = 2, BACKWARD = 3, RUNNING = 4, BRAKE = 5, STATION = 6,
+            PC_TABLE = 7, PC_STEP = 8, LAST = 9, APPROACHED = 10, QUEUED = 11, QUEUE = 12;
+    private static final int QUEUE_LENGTH = 4; // sensor events a train may pass while waiting
+    private static final int DIRECTIONS = Lab1.Direction.values().length;
+
+    // Kinds of transition
+    static final int MOVE = 0, REST = 1, DEPART = 2, GRANT = 3, KINDS = 4;
+
+    // Something that must not happen, found while taking a transition
+    static final class Violation extends Exception {
+        Violation(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    // Told about each transition out of a state: the state it leads to, or the violation it runs into
+    interface Visitor {
+        void visit(long[] next, int train, int kind, Violation violation);
+    }
+
+    private final TrackMap map;
+    private final int[] trainIds, brakeTiles, lengths;
+    private final int[] enteringBrakeTiles; // told to stop by the sensor of the tile it enters
+    private final int[] initialDirs, initialBackward;
+    private final boolean[] obstacles; // tiles taken by trains of the map that are not driven
+    private final Step[][] table; // [sensor * DIRECTIONS + direction]
+    private final Section[] sections;
+    private final IdentityHashMap<Section, Integer> sectionIndex = new IdentityHashMap<Section, Integer>();
+    private final int[] capacity;
+    private final int[] widths; // of the per train fields
+    private final int bits;
+
+    Model(TrackMap map, Rules rules, Fleet fleet) {
+        this.map = map;
+        List<Fleet.Entry> entries = fleet.getEntries();
+        int n = entries.size();
+        trainIds = new int[n];
+        brakeTiles = new int[n];
+        enteringBrakeTiles = new int[n];
+        lengths = new int[n];
+        initialDirs = new int[n];
+        initialBackward = new int[n];
+        int maxBrake = 0;
+        for (int t = 0; t < n; t++) {
+            Fleet.Entry entry = entries.get(t);
+            if (entry.trainId < 1 || entry.trainId > map.getTrainCount())
+                throw new IllegalArgumentException("map has no train " + entry.trainId);
+            trainIds[t] = entry.trainId;
+            int speed = Math.min(Math.abs(entry.speed), Lab1.DEFAULT_MAX_SPEED); // as the controller limits it by default
+            brakeTiles[t] = HeadlessSimulator.stoppingTiles(speed, false);
+            enteringBrakeTiles[t] = HeadlessSimulator.stoppingTiles(speed, true);
+            lengths[t] = map.trainLength(entry.trainId);
+            initialDirs[t] = entry.direction.ordinal();
+            initialBackward[t] = entry.speed < 0 ? 1 : 0;
+            maxBrake = Math.max(maxBrake, brakeTiles[t]);
+        }
+
+        table = new Step[map.getSensorCount() * DIRECTIONS][];
+        ArrayList<Section> found = new ArrayList<Section>();
+        int maxSteps = 0;
+        for (int sensor = 0; sensor < map.getSensorCount(); sensor++)
+            for (Lab1.Direction direction : Lab1.Direction.values()) {
+                Step[] steps = rules.steps(sensor, direction);
+                table[sensor * DIRECTIONS + direction.ordinal()] = steps;
+                maxSteps = Math.max(maxSteps, steps.length);
+                for (Step step : steps) {
+                    if (step.sections != null)
+                        for (Section section : step.sections)
+                            add(found, section);
+                    add(found, step.section);
+                    add(found, step.lane);
+                    if (step.region != null) {
+                        add(found, step.region.primary);
+                        add(found, step.region.secondary);
+                        add(found, step.region.lanes);
+                    }
+                }
+            }
+        if (found.size() > 64)
+            throw new IllegalArgumentException("more than 64 sections");
+        sections = found.toArray(new Section[found.size()]);
+        capacity = new int[sections.length];
+        for (int i = 0; i < sections.length; i++) {
+            sectionIndex.put(sections[i], i);
+            capacity[i] = sections[i].free; // nothing is held yet
+        }
+
+        widths = new int[QUEUE + QUEUE_LENGTH];
+        widths[TILE] = width(map.getTileCount() - 1);
+        widths[ENTRY] = 2;
+        widths[DIR] = 1;
+        widths[BACKWARD] = 1;
+        widths[RUNNING] = 1;
+        widths[BRAKE] = width(maxBrake);
+        widths[STATION] = 1;
+        widths[PC_TABLE] = width(table.length);
+        widths[PC_STEP] = width(maxSteps);
+        widths[LAST] = width(map.getSensorCount());
+        widths[APPROACHED] = width(sections.length);
+        widths[QUEUED] = width(QUEUE_LENGTH);
+        for (int i = 0; i < QUEUE_LENGTH; i++)
+            widths[QUEUE + i] = width(map.getSensorCount() - 1);
+        int perTrain = 3 * sections.length;
+        for (int width : widths)
+            perTrain += width;
+        bits = map.getSwitchCount() + n * perTrain;
+
+        obstacles = new boolean[map.getTileCount()];
+        int[] switches = new int[map.getSwitchCount()];
+        for (int id = 1; id <= map.getTrainCount(); id++) {
+            boolean driven = false;
+            for (int trainId : trainIds)
+                driven |= trainId == id;
+            if (driven)
+                continue;
+            int tile = map.trainTile(id);
+            int[] cells = cells(switches, tile, route(switches, tile, map.trainHeading(id)), map.trainLength(id));
+            for (int i = 0; i < cells.length; i += 3)
+                obstacles[cells[i]] = true;
+        }
+    }
+
+    private void add(ArrayList<Section> found, Section section) {
+        if (section != null && !found.contains(section))
+            found.add(section);
+    }
+
+    // Bits needed for values up to max
+    private static int width(int max) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(max, 1));
+    }
+
+    int getTrainCount() {
+        return trainIds.length;
+    }
+
+    // Number of longs a state takes
+    int getStateLength() {
+        return (bits + 63) / 64;
+    }
+
+    // A state unpacked for a transition to be taken on it
+    private final class Snapshot {
+        final int[] switches = new int[map.getSwitchCount()]; // 1 if set to the right
+        final int[][] f = new int[trainIds.length][widths.length];
+        final long[] locks = new long[trainIds.length], held = new long[trainIds.length],
+                ahead = new long[trainIds.length];
+        int blocked = -1; // the train that found a section taken last, while taking a transition
+        boolean entering; // while the sensor events of a train entering a tile are handled
+
+        Snapshot() {
+        }
+
+        Snapshot(long[] state) {
+            int pos = 0;
+            for (int i = 0; i < switches.length; i++, pos++)
+                switches[i] = (int) (state[pos >>> 6] >>> pos) & 1;
+            for (int t = 0; t < f.length; t++) {
+                for (int i = 0; i < widths.length; i++) {
+                    f[t][i] = (int) read(state, pos, widths[i]);
+                    pos += widths[i];
+                }
+                locks[t] = read(state, pos, sections.length);
+                held[t] = read(state, pos += sections.length, sections.length);
+                ahead[t] = read(state, pos += sections.length, sections.length);
+                pos += sections.length;
+            }
+        }
+
+        long[] pack() {
+            long[] state = new long[getStateLength()];
+            int pos = 0;
+            for (int i = 0; i < switches.length; i++, pos++)
+                state[pos >>> 6] |= (long) switches[i] << pos;
+            for (int t = 0; t < f.length; t++) {
+                for (int i = 0; i < widths.length; i++) {
+                    write(state, pos, widths[i], f[t][i]);
+                    pos += widths[i];
+                }
+                write(state, pos, sections.length, locks[t]);
+                write(state, pos += sections.length, sections.length, held[t]);
+                write(state, pos += sections.length, sections.length, ahead[t]);
+                pos += sections.length;
+            }
+            return state;
+        }
+
+        int free(int section) {
+            int free = capacity[section];
+            for (long h : held)
+                if ((h & 1L << section) != 0)
+                    free--;
+            return free;
+        }
+
+        boolean isFree(long mask) {
+            for (int i = 0; i < sections.length; i++)
+                if ((mask & 1L << i) != 0 && free(i) == 0)
+                    return false;
+            return true;
+        }
+
+        void take(int t, long mask) {
+            held[t] |= mask;
+            locks[t] |= mask;
+        }
+
+        void release(int t, long mask) {
+            locks[t] &= ~mask;
+            held[t] &= ~mask;
+            ahead[t] &= ~mask;
+        }
+
+        int[] cells(int t) {
+            return Model.this.cells(switches, f[t][TILE], f[t][ENTRY], lengths[t]);
+        }
+
+        // The train on the tile other than t, -1 if none
+        int trainOn(int tile, int t) {
+            for (int u = 0; u < f.length; u++) {
+                if (u == t)
+                    continue;
+                int[] cells = cells(u);
+                for (int i = 0; i < cells.length; i += 3)
+                    if (cells[i] == tile)
+                        return u;
+            }
+            return -1;
+        }
+    }
+
+    private static long read(long[] state, int pos, int width) {
+        long value = state[pos >>> 6] >>> pos;
+        if ((pos & 63) + width > 64)
+            value |= state[(pos >>> 6) + 1] << (64 - (pos & 63));
+        return width == 64 ? value : value & ((1L << width) - 1);
+    }
+
+    private static void write(long[] state, int pos, int width, long value) {
+        state[pos >>> 6] |= value << pos;
+        if ((pos & 63) + width > 64)
+            state[(pos >>> 6) + 1] |= value >>> (64 - (pos & 63));
+    }
+
+    // The side a train entering the tile through the given side leaves it by
+    private int route(int[] switches, int tile, int side) {
+        int sw = map.switchAtTile(tile);
+        return map.route(tile, side,
+                sw >= 0 && switches[sw] == 1 ? TSimInterface.SWITCH_RIGHT : TSimInterface.SWITCH_LEFT);
+    }
+
+    // The tiles a train takes, head first, as {tile, entry side, exit side} moving forward, like the simulator
+    private int[] cells(int[] switches, int tile, int entry, int length) {
+        int[] cells = new int[3 * length];
+        cells[0] = tile;
+        cells[1] = entry;
+        cells[2] = route(switches, tile, entry);
+        for (int i = 1; i < length; i++) {
+            int next = map.neighbour(cells[3 * i - 3], cells[3 * i - 2]);
+            int enter = TrackMap.opposite(cells[3 * i - 2]);
+            cells[3 * i] = next;
+            cells[3 * i + 1] = route(switches, next, enter);
+            cells[3 * i + 2] = enter;
+        }
+        return cells;
+    }
+
+    /**
+     * Returns the state the trains start in: where the map places them,
+     * running, having handled the sensors they start on.
+     */
+    long[] initial() throws Violation {
+        Snapshot s = new Snapshot();
+        for (int t = 0; t < trainIds.length; t++) {
+            int tile = map.trainTile(trainIds[t]);
+            s.f[t][TILE] = tile;
+            s.f[t][ENTRY] = route(s.switches, tile, map.trainHeading(trainIds[t]));
+            s.f[t][DIR] = initialDirs[t];
+            s.f[t][BACKWARD] = initialBackward[t];
+            s.f[t][RUNNING] = 1;
+        }
+        for (int t = 0; t < trainIds.length; t++) {
+            int sensor = map.sensorAtTile(s.f[t][TILE]);
+            if (sensor >= 0)
+                sensor(s, t, sensor);
+        }
+        return s.pack();
+    }
+
+    /**
+     * Takes every transition out of the state. A state without any is one
+     * in which the trains wait for each other; the visitor is told about it
+     * as a violation.
+     */
+    void successors(long[] state, Visitor visitor) {
+        boolean any = false;
+        for (int t = 0; t < trainIds.length; t++)
+            for (int kind = 0; kind < KINDS; kind++) {
+                Snapshot s = new Snapshot(state);
+                if (!isEnabled(s, t, kind))
+                    continue;
+                any = true;
+                try {
+                    take(s, t, kind);
+                    visitor.visit(s.pack(), t, kind, null);
+                } catch (Violation v) {
+                    visitor.visit(null, t, kind, v);
+                }
+            }
+        if (!any)
+            visitor.visit(null, -1, -1, new Violation("deadlock: " + describe(state)));
+    }
+
+    private boolean isEnabled(Snapshot s, int t, int kind) {
+        int[] f = s.f[t];
+        switch (kind) {
+        case MOVE:
+            return f[RUNNING] == 1 || f[BRAKE] > 0;
+        case REST:
+            return f[RUNNING] == 0 && f[BRAKE] > 0;
+        case DEPART:
+            return f[STATION] == 1 && f[BRAKE] == 0;
+        default:
+            Step step = pending(s, t);
+            return step != null && step.op == Step.Op.ACQUIRE && f[STATION] == 0
+                    && s.isFree(mask(step.sections) & ~s.held[t]);
+        }
+    }
+
+    private void take(Snapshot s, int t, int kind) throws Violation {
+        int[] f = s.f[t];
+        switch (kind) {
+        case MOVE:
+            move(s, t);
+            break;
+        case REST:
+            f[BRAKE] = 0;
+            break;
+        case DEPART:
+            f[STATION] = 0;
+            f[DIR] = 1 - f[DIR];
+            f[BACKWARD] = 1 - f[BACKWARD];
+            f[RUNNING] = 1;
+            f[PC_STEP]++;
+            proceed(s, t);
+            break;
+        default:
+            Step step = pending(s, t);
+            acquired(s, t, step, mask(step.sections) & ~s.held[t]);
+            f[RUNNING] = 1;
+            f[BRAKE] = 0;
+            f[PC_STEP]++;
+            proceed(s, t);
+            break;
+        }
+    }
+
+    // The step the train waits at, or null
+    private Step pending(Snapshot s, int t) {
+        int index = s.f[t][PC_TABLE];
+        return index == 0 ? null : table[index - 1][s.f[t][PC_STEP]];
+    }
+
+    private long mask(Section[] sections) {
+        long mask = 0;
+        for (Section section : sections)
+            mask |= mask(section);
+        return mask;
+    }
+
+    private long mask(Section section) {
+        return 1L << sectionIndex.get(section);
+    }
+
+    // Moves the train one tile in the direction it is running, as the simulator does
+    private void move(Snapshot s, int t) throws Violation {
+        int[] f = s.f[t];
+        if (f[RUNNING] == 0)
+            f[BRAKE]--;
+        int[] cells = s.cells(t);
+        int length = lengths[t];
+        boolean forward = f[BACKWARD] == 0;
+        int end = forward ? 0 : 3 * (length - 1);
+        int side = forward ? cells[end + 2] : cells[end + 1];
+        if (side == TrackMap.STOP)
+            throw new Violation(train(t) + " runs into the end of the track at " + at(cells[end]));
+        int tile = map.neighbour(cells[end], side);
+        int enter = TrackMap.opposite(side);
+        int exit = tile < 0 ? TrackMap.NO_RAIL : route(s.switches, tile, enter);
+        if (exit == TrackMap.NO_RAIL)
+            throw new Violation(train(t) + " derails leaving " + at(cells[end]));
+        int other = s.trainOn(tile, t);
+        if (other >= 0)
+            throw new Violation(train(t) + " collides with " + train(other) + " at " + at(tile));
+        if (obstacles[tile])
+            throw new Violation(train(t) + " collides with a train standing at " + at(tile));
+        boolean entered = true;
+        for (int i = 0; i < cells.length; i += 3)
+            entered &= cells[i] != tile;
+        if (forward) {
+            f[TILE] = tile;
+            f[ENTRY] = enter;
+        } else {
+            f[TILE] = length > 1 ? cells[3] : tile;
+            f[ENTRY] = length > 1 ? cells[4] : exit;
+        }
+        s.entering = true;
+        if (entered && map.sensorAtTile(tile) >= 0)
+            sensor(s, t, map.sensorAtTile(tile)); // trains subscribe to active events only
+        s.entering = false;
+    }
+
+    // Hands a sensor event to the train's controller, which handles it right away unless it is waiting
+    private void sensor(Snapshot s, int t, int sensor) throws Violation {
+        int[] f = s.f[t];
+        if (f[QUEUED] == QUEUE_LENGTH)
+            throw new Violation(train(t) + " passed more than " + QUEUE_LENGTH + " sensors while waiting");
+        f[QUEUE + f[QUEUED]++] = sensor;
+        if (f[PC_TABLE] == 0)
+            proceed(s, t);
+    }
+
+    // Takes the train's steps until one has it wait, and the steps for the sensor events it has been given
+    private void proceed(Snapshot s, int t) throws Violation {
+        int[] f = s.f[t];
+        while (true) {
+            if (f[PC_TABLE] == 0) {
+                if (f[QUEUED] == 0)
+                    return;
+                int sensor = f[QUEUE];
+                System.arraycopy(f, QUEUE + 1, f, QUEUE, QUEUE_LENGTH - 1);
+                f[QUEUE + QUEUE_LENGTH - 1] = 0;
+                f[QUEUED]--;
+                if (f[LAST] == sensor + 1)
+                    continue; // the other event of a sensor already handled
+                f[LAST] = sensor + 1;
+                int index = sensor * DIRECTIONS + f[DIR];
+                if (table[index].length == 0)
+                    continue;
+                f[PC_TABLE] = index + 1;
+                f[PC_STEP] = 0;
+            }
+            Step[] steps = table[f[PC_TABLE] - 1];
+            if (f[PC_STEP] == steps.length) {
+                f[PC_TABLE] = 0;
+                f[PC_STEP] = 0;
+                continue;
+            }
+            if (!execute(s, t, steps[f[PC_STEP]]))
+                return;
+            f[PC_STEP]++;
+        }
+    }
+
+    // Performs one step as Lab1.Train.execute does; returns false if the train has to wait
+    private boolean execute(Snapshot s, int t, Step step) throws Violation {
+        int[] f = s.f[t];
+        switch (step.op) {
+        case ACQUIRE: {
+            long all = mask(step.sections), needed = all & ~s.held[t];
+            if (needed != 0 && !s.isFree(needed)) {
+                if (f[RUNNING] == 1)
+                    f[BRAKE] = brake(s, t);
+                f[RUNNING] = 0;
+                s.blocked = t;
+                breakWaitCycles(s);
+                return false;
+            }
+            if (needed == 0)
+                s.ahead[t] &= ~all; // the ones reserved ahead are for good now
+            else
+                acquired(s, t, step, needed);
+            return true;
+        }
+        case APPROACH: {
+            int section = sectionIndex.get(step.section);
+            if (f[APPROACHED] != 0 || (s.locks[t] & 1L << section) != 0)
+                return true;
+            if (s.free(section) > 0) {
+                s.take(t, 1L << section);
+                s.ahead[t] |= 1L << section;
+            } else {
+                f[APPROACHED] = section + 1;
+            }
+            return true;
+        }
+        case TAKE_LANE: {
+            long primary = mask(step.region.primary), secondary = mask(step.region.secondary);
+            if ((s.locks[t] & (primary | secondary)) != 0)
+                return true;
+            if (s.isFree(primary))
+                s.take(t, primary);
+            else if (s.isFree(secondary))
+                s.take(t, secondary);
+            else
+                throw new Violation(train(t) + " finds no free lane in " + step.region);
+            return true;
+        }
+        case RELEASE:
+            s.release(t, mask(step.section));
+            return true;
+        case RELEASE_LANE: {
+            long lanes = mask(step.region.primary) | mask(step.region.secondary);
+            if ((s.locks[t] & lanes) != 0)
+                s.release(t, lanes | mask(step.region.lanes));
+            return true;
+        }
+        case SWITCH:
+            setSwitch(s, t, step.xPos, step.yPos, step.direction);
+            return true;
+        case SWITCH_FOR_LANE:
+            setSwitch(s, t, step.xPos, step.yPos,
+                    (s.locks[t] & mask(step.lane)) != 0 ? step.direction : step.otherDirection);
+            return true;
+        default: // STATION
+            if (f[RUNNING] == 1)
+                f[BRAKE] = brake(s, t);
+            f[RUNNING] = 0;
+            f[STATION] = 1;
+            return false;
+        }
+    }
+
+    // The tiles the train may still enter when told to stop now
+    private int brake(Snapshot s, int t) {
+        return s.entering ? enteringBrakeTiles[t] : brakeTiles[t];
+    }
+
+    // Takes the sections the train waited for or found free, as Lab1.Train.acquired does
+    private void acquired(Snapshot s, int t, Step step, long needed) {
+        s.take(t, needed);
+        s.ahead[t] &= ~mask(step.sections);
+        int approached = s.f[t][APPROACHED];
+        if (approached != 0 && (needed & 1L << (approached - 1)) != 0)
+            s.f[t][APPROACHED] = 0;
+    }
+
+    private void setSwitch(Snapshot s, int t, int x, int y, int direction) throws Violation {
+        int sw = map.switchAt(x, y);
+        int other = s.trainOn(map.switchTile(sw), -1);
+        if (other >= 0)
+            throw new Violation(train(t) + " sets the switch at " + at(map.switchTile(sw)) + " under "
+                    + train(other));
+        s.switches[sw] = direction == TSimInterface.SWITCH_RIGHT ? 1 : 0;
+    }
+
+    /*
+     * Takes reservations ahead of time back from trains that wait for each
+     * other, as Reservations.breakWaitCycles does.
+     */
+    private void breakWaitCycles(Snapshot s) throws Violation {
+        int n = trainIds.length;
+        while (true) {
+            long[] needed = new long[n];
+            boolean[] stuck = new boolean[n];
+            for (int t = 0; t < n; t++) {
+                Step step = pending(s, t);
+                if (step != null && step.op == Step.Op.ACQUIRE && s.f[t][STATION] == 0) {
+                    needed[t] = mask(step.sections) & ~s.held[t];
+                    stuck[t] = true;
+                }
+            }
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int t = 0; t < n; t++)
+                    if (stuck[t] && canGo(s, needed[t], stuck)) {
+                        stuck[t] = false;
+                        changed = true;
+                    }
+            }
+            long stuckNeeds = 0;
+            StringBuilder waiting = new StringBuilder();
+            for (int t = 0; t < n; t++)
+                if (stuck[t]) {
+                    stuckNeeds |= needed[t];
+                    waiting.append(waiting.length() == 0 ? "" : ", ").append(trainIds[t]);
+                }
+            if (stuckNeeds == 0)
+                return;
+            int victim = -1;
+            if (stuck[s.blocked] && (s.ahead[s.blocked] & stuckNeeds) != 0)
+                victim = s.blocked;
+            for (int t = n - 1; t >= 0 && victim < 0; t--)
+                if (stuck[t] && (s.ahead[t] & stuckNeeds) != 0)
+                    victim = t;
+            if (victim < 0)
+                throw new Violation("trains " + waiting + " wait for each other forever");
+            long revoked = Long.lowestOneBit(s.ahead[victim] & stuckNeeds);
+            s.held[victim] &= ~revoked;
+            s.ahead[victim] &= ~revoked;
+        }
+    }
+
+    // True if every section needed is free or held by a train that is not stuck
+    private boolean canGo(Snapshot s, long needed, boolean[] stuck) {
+        for (int i = 0; i < sections.length; i++) {
+            if ((needed & 1L << i) == 0 || s.free(i) > 0)
+                continue;
+            boolean returned = false;
+            for (int u = 0; u < stuck.length; u++)
+                returned |= !stuck[u] && (s.held[u] & 1L << i) != 0;
+            if (!returned)
+                return false;
+        }
+        return true;
+    }
+
+    private String train(int t) {
+        return "train " + trainIds[t];
+    }
+
+    private String at(int tile) {
+        return "(" + map.tileX(tile) + "," + map.tileY(tile) + ")";
+    }
+
+    /**
+     * Describes a transition, for a trace.
+     */
+    String describe(long[] state, int t, int kind) {
+        Snapshot s = new Snapshot(state);
+        switch (kind) {
+        case MOVE:
+            return train(t) + (s.f[t][RUNNING] == 1 ? " moves" : " brakes") + " from " + at(s.f[t][TILE]);
+        case REST:
+            return train(t) + " comes to a halt at " + at(s.f[t][TILE]);
+        case DEPART:
+            return train(t) + " departs from " + at(s.f[t][TILE]);
+        default:
+            return train(t) + " gets " + names(mask(pending(s, t).sections) & ~s.held[t]);
+        }
+    }
+
+    /**
+     * Describes where the trains are and what they hold in the state.
+     */
+    String describe(long[] state) {
+        Snapshot s = new Snapshot(state);
+        StringBuilder text = new StringBuilder();
+        for (int t = 0; t < trainIds.length; t++) {
+            int[] f = s.f[t];
+            text.append(t == 0 ? "" : "; ").append(train(t)).append(" at ").append(at(f[TILE]));
+            text.append(f[STATION] == 1 ? " at a station" : f[PC_TABLE] != 0 ? " waiting" : "");
+            text.append(" holding ").append(names(s.held[t]));
+        }
+        return text.toString();
+    }
+
+    private String names(long mask) {
+        StringBuilder text = new StringBuilder("[");
+        for (int i = 0; i < sections.length; i++)
+            if ((mask & 1L << i) != 0)
+                text.append(text.length() == 1 ? "" : ", ").append(sections[i]);
+        return text.append(']').toString();
+    }
+}
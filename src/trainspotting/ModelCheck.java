@@ -0,0 +1,223 @@
+package trainspotting;
+
+import TSim.map.TrackMap;
+import TSim.map.TrackMapParser;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Proves that the rules of a map keep a fleet from colliding, derailing or
+ * waiting forever, whatever the order things happen in, by going through
+ * every state the trains can get in (see Model). The search is breadth
+ * first, one level at a time, and each level is split over the cores by a
+ * fork/join pool whose workers steal the parts left to others; states seen
+ * are kept in a concurrent map together with the state they were first
+ * reached from, so that the way to a violation can be printed.
+ *
+ * <pre>
+ * java -cp bin trainspotting.ModelCheck Lab1.map 17 14 [parallelism]
+ * java -cp bin trainspotting.ModelCheck Lab1.map fleet.txt [parallelism]
+ * </pre>
+ *
+ */
+
+public final class ModelCheck {
+
+    private static final int SPLIT = 256; // states expanded by a part without splitting it further
+
+    // A packed state as a key of the map
+    private static final class State {
+        final long[] bits;
+        private final int hash;
+
+        State(long[] bits) {
+            this.bits = bits;
+            hash = Arrays.hashCode(bits);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof State && hash == ((State) o).hash && Arrays.equals(bits, ((State) o).bits);
+        }
+    }
+
+    // The first violation found and the state it was found in
+    private static final class Found {
+        final State state;
+        final int train, kind;
+        final String message;
+
+        Found(State state, int train, int kind, String message) {
+            this.state = state;
+            this.train = train;
+            this.kind = kind;
+            this.message = message;
+        }
+    }
+
+    private final Model model;
+    private final ConcurrentHashMap<State, State> parents = new ConcurrentHashMap<State, State>(); // initial to itself
+    private final AtomicLong transitions = new AtomicLong();
+    private final AtomicReference<Found> found = new AtomicReference<Found>();
+    private int depth;
+
+    ModelCheck(Model model) {
+        this.model = model;
+    }
+
+    // Expands the states of a level from lo to hi, splitting it while large, and returns the states first seen
+    private final class Part extends RecursiveTask<List<State>> {
+        private final State[] level;
+        private final int lo, hi;
+
+        Part(State[] level, int lo, int hi) {
+            this.level = level;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected List<State> compute() {
+            if (hi - lo > SPLIT) {
+                int mid = (lo + hi) >>> 1;
+                Part left = new Part(level, lo, mid);
+                left.fork();
+                List<State> next = new Part(level, mid, hi).compute();
+                next.addAll(left.join());
+                return next;
+            }
+            final List<State> next = new ArrayList<State>();
+            for (int i = lo; i < hi && found.get() == null; i++) {
+                final State state = level[i];
+                model.successors(state.bits, new Model.Visitor() {
+                    public void visit(long[] bits, int train, int kind, Model.Violation violation) {
+                        transitions.incrementAndGet();
+                        if (violation != null) {
+                            found.compareAndSet(null, new Found(state, train, kind, violation.getMessage()));
+                            return;
+                        }
+                        State successor = new State(bits);
+                        if (parents.putIfAbsent(successor, state) == null)
+                            next.add(successor);
+                    }
+                });
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Goes through every state reachable from the initial one, until there
+     * are none left or a violation is found; returns the violation or null.
+     */
+    Found check(int parallelism) {
+        State initial;
+        try {
+            initial = new State(model.initial());
+        } catch (Model.Violation v) {
+            found.set(new Found(null, -1, -1, v.getMessage()));
+            return found.get();
+        }
+        parents.put(initial, initial);
+        List<State> level = new ArrayList<State>();
+        level.add(initial);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            while (!level.isEmpty() && found.get() == null) {
+                State[] states = level.toArray(new State[level.size()]);
+                level = pool.invoke(new Part(states, 0, states.length));
+                depth++;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return found.get();
+    }
+
+    // The transitions from the initial state to the one a violation was found in
+    private List<String> trace(Found violation) {
+        Deque<State> path = new ArrayDeque<State>();
+        for (State state = violation.state; state != null; ) {
+            path.addFirst(state);
+            State parent = parents.get(state);
+            state = parent == state ? null : parent;
+        }
+        List<String> steps = new ArrayList<String>();
+        State previous = null;
+        for (final State state : path) {
+            if (previous != null)
+                steps.add(transition(previous, state));
+            previous = state;
+        }
+        if (violation.train >= 0)
+            steps.add(model.describe(violation.state.bits, violation.train, violation.kind));
+        return steps;
+    }
+
+    // Finds out which transition leads from one state to the other
+    private String transition(final State from, final State to) {
+        final String[] taken = new String[1];
+        model.successors(from.bits, new Model.Visitor() {
+            public void visit(long[] bits, int train, int kind, Model.Violation violation) {
+                if (taken[0] == null && bits != null && Arrays.equals(bits, to.bits))
+                    taken[0] = model.describe(from.bits, train, kind);
+            }
+        });
+        return taken[0];
+    }
+
+    void print(Found violation, long millis, int parallelism) {
+        System.out.println(parents.size() + " states, " + transitions.get() + " transitions, depth " + depth + ", "
+                + millis + " ms on " + parallelism + " workers");
+        if (violation == null) {
+            System.out.println("no collisions, derailments or deadlocks");
+            return;
+        }
+        System.out.println(violation.message);
+        if (violation.state == null)
+            return;
+        for (String step : trace(violation))
+            System.out.println("    " + step);
+    }
+
+    public static void main(String[] args) {
+        try {
+            Fleet fleet;
+            int next; // index of the first optional argument
+            if (args[1].matches("-?\\d+")) {
+                fleet = Fleet.pair(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+                next = 3;
+            } else {
+                fleet = Fleet.load(args[1]);
+                next = 2;
+            }
+            int parallelism = args.length > next ? Integer.parseInt(args[next])
+                    : Runtime.getRuntime().availableProcessors();
+            TrackMap map = TrackMapParser.load(args[0]);
+            ModelCheck check = new ModelCheck(new Model(map, Rules.forMap(args[0], map), fleet));
+            long start = System.nanoTime();
+            Found violation = check.check(parallelism);
+            check.print(violation, (System.nanoTime() - start) / 1000000, parallelism);
+            System.exit(violation == null ? 0 : 1);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.err.println("ModelCheck expects 2-4 arguments: Lab1.map (<Speed1> <Speed2> | <FleetFile>) "
+                    + "[Parallelism]");
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
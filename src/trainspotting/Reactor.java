@@ -0,0 +1,155 @@
+package trainspotting;
+
+import TSim.CommandException;
+import TSim.CommandStatus;
+import TSim.PackedEvent;
+import TSim.TrainErrorEvent;
+import TSim.TrainEventHandler;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiConsumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Runs the trains of a controller as state machines instead of threads.
+ * Sensor events are handed to the train's handler by the thread reading from
+ * TSim, in the order they were read. A train that has to wait leaves a
+ * continuation, which is run on the same thread once whatever it waits for
+ * has been released, after the current event has been handled.
+ *
+ * Only station dwell times and other waits for time to pass are left to the
+ * clock (see SimClock), whose tasks take the same lock as event handling, so
+ * handlers never run concurrently.
+ *
+ */
+
+final class Reactor implements TrainEventHandler {
+
+    private final LongConsumer[] handlers; // by train id
+    private final ArrayDeque<Runnable> ready = new ArrayDeque<Runnable>();
+    private final SimClock clock;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile Throwable failure;
+    private volatile boolean shutdown;
+
+    private final BiConsumer<CommandStatus, Throwable> replyCheck = new BiConsumer<CommandStatus, Throwable>() {
+        public void accept(CommandStatus status, Throwable e) {
+            if (e != null)
+                fail(e);
+            else if (status.getStatus() != CommandStatus.OK)
+                fail(new CommandException(status.toString()));
+        }
+    };
+
+    Reactor(int trainCount, SimClock clock) {
+        handlers = new LongConsumer[trainCount + 1];
+        this.clock = clock;
+    }
+
+    // Events for trains without a handler, whatever their id, are ignored
+    void register(int trainId, LongConsumer handler) {
+        handlers[trainId] = handler;
+    }
+
+    public synchronized void sensorEvent(long event) {
+        if (shutdown)
+            return;
+        int trainId = PackedEvent.trainId(event);
+        if (trainId < 1 || trainId >= handlers.length || handlers[trainId] == null)
+            return; // a train the reactor does not drive
+        LongConsumer handler = handlers[trainId];
+        try {
+            handler.accept(event);
+            runReady();
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    public void trainError(TrainErrorEvent event) {
+        fail(new CommandException(event.toString()));
+    }
+
+    /**
+     * Runs the task as if it handled an event.
+     */
+    synchronized void execute(Runnable task) {
+        if (shutdown)
+            return;
+        try {
+            task.run();
+            runReady();
+        } catch (RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Queues a continuation to run after the current event. Must be called
+     * from a handler or continuation.
+     */
+    void post(Runnable continuation) {
+        ready.add(continuation);
+    }
+
+    /**
+     * Runs the task as if it handled an event once the delay has passed on
+     * the clock.
+     */
+    void schedule(long millis, final Runnable task) {
+        if (shutdown)
+            return;
+        clock.schedule(millis, new Runnable() {
+            public void run() {
+                execute(task);
+            }
+        });
+    }
+
+    /**
+     * Makes the reply to a command stop all trains unless it is a success.
+     */
+    void check(CompletableFuture<CommandStatus> reply) {
+        reply.whenComplete(replyCheck);
+    }
+
+    private void runReady() {
+        Runnable continuation;
+        while (!shutdown && (continuation = ready.poll()) != null)
+            continuation.run();
+    }
+
+    /**
+     * Records why the trains stopped and stops handling events. Only the first
+     * failure is kept.
+     */
+    void fail(Throwable cause) {
+        synchronized (this) {
+            if (failure != null)
+                return;
+            failure = cause;
+        }
+        cause.printStackTrace();
+        shutdown();
+    }
+
+    void shutdown() {
+        shutdown = true;
+        stopped.countDown();
+    }
+
+    boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Waits until the reactor has been shut down and returns the first
+     * failure, or null if none failed.
+     */
+    Throwable join() throws InterruptedException {
+        stopped.await();
+        return failure;
+    }
+}
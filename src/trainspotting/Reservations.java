@@ -0,0 +1,440 @@
+package trainspotting;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands out the sections of one set of rules to the trains. A train asks for
+ * one or more sections at once and gets either all of them or none, so it
+ * never holds some while waiting for the rest. Requests that cannot be
+ * granted wait in the order given by the policy: first come first served,
+ * by priority class, or earliest deadline first. Once all sections of a
+ * request have a free permit, it is not passed by a later one that needs one
+ * of them. Until then, later requests may take the sections it is not
+ * waiting for, as the trains that get them move on and return them.
+ *
+ * Sections reserved ahead of time, before the train gets to them, may be
+ * taken back. Whenever a train has to wait, the trains that wait for each
+ * other are looked for; if there are any, the reservation ahead of time of
+ * the one served last is taken back and added to what it waits for. If
+ * there is no such reservation, the trains could only ever wait for each
+ * other and the request fails. Requests that the train withdraws after a
+ * while if not granted, timed requests, never wait forever.
+ *
+ * Times are those of the clock the controller goes by (see SimClock).
+ *
+ * All sections of a Reservations share its lock. There are few trains, and
+ * granting several sections at once needs a consistent view of all of them.
+ *
+ */
+
+final class Reservations {
+
+    enum Policy {
+        FIFO, // in the order trains asked
+        PRIORITY, // higher priority class first, then in order
+        DEADLINE // earliest deadline first, then in order
+    }
+
+    // A train as far as reservations are concerned
+    static final class Holder {
+        final int trainId;
+        final int priority; // higher is served first under PRIORITY
+        final SimClock.Parking parking; // told while the train's thread is blocked in acquire
+        volatile long deadline; // time of the clock by which the train is due, for DEADLINE
+
+        Holder(int trainId, int priority) {
+            this(trainId, priority, SimClock.UNTRACKED);
+        }
+
+        Holder(int trainId, int priority, SimClock.Parking parking) {
+            this.trainId = trainId;
+            this.priority = priority;
+            this.parking = parking;
+        }
+
+        public String toString() {
+            return "train " + trainId;
+        }
+    }
+
+    // A request waiting for all its sections at once
+    private static final class Request {
+        final Holder holder;
+        final ArrayList<Section> needed = new ArrayList<Section>(); // not held yet
+        final Section[] sections; // all asked for, held ahead of time or not
+        final Runnable onGrant;
+        final boolean timed;
+        final long order, deadline;
+
+        Request(Holder holder, Section[] sections, Runnable onGrant, boolean timed, long order) {
+            this.holder = holder;
+            this.sections = sections;
+            this.onGrant = onGrant;
+            this.timed = timed;
+            this.order = order;
+            deadline = holder.deadline;
+        }
+
+        // True if one of the sections has no free permit, so that the request could not go in any case
+        boolean isBlocked() {
+            for (Section section : needed)
+                if (section.free == 0)
+                    return true;
+            return false;
+        }
+    }
+
+    private Policy policy = Policy.FIFO;
+    private volatile SimClock clock = SimClock.REAL;
+    private final ArrayList<Request> waiting = new ArrayList<Request>(); // in the order they are served
+    private long requests;
+    private long revoked;
+
+    synchronized void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    synchronized Policy getPolicy() {
+        return policy;
+    }
+
+    // Sets the clock hold times and timeouts are measured by
+    void setClock(SimClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Returns how many reservations ahead of time were taken back to let
+     * trains waiting for each other go on.
+     */
+    synchronized long getRevoked() {
+        return revoked;
+    }
+
+    synchronized boolean holds(Holder holder, Section section) {
+        return section.holders.contains(holder);
+    }
+
+    /**
+     * Grants the sections the holder does not hold yet if all of them are
+     * free and nobody waits for them, and returns true. Sections it held
+     * ahead of time are its own for good from then on.
+     */
+    synchronized boolean tryAcquire(Holder holder, Section[] sections) {
+        for (Section section : sections)
+            if (!section.holders.contains(holder) && !isFree(section))
+                return false;
+        for (Section section : sections)
+            if (!section.holders.contains(holder))
+                take(section, holder, clock.nanoTime());
+        for (Section section : sections)
+            section.ahead.remove(holder);
+        return true;
+    }
+
+    /**
+     * Reserves a section the holder is going to need if it is free and
+     * nobody waits for it; the reservation may be taken back until the
+     * holder acquires the section.
+     */
+    synchronized boolean reserveAhead(Holder holder, Section section) {
+        if (section.holders.contains(holder))
+            return true;
+        if (!isFree(section))
+            return false;
+        take(section, holder, clock.nanoTime());
+        section.ahead.add(holder);
+        return true;
+    }
+
+    /**
+     * Acquires the sections like tryAcquire if possible and returns true.
+     * Otherwise queues a request and returns false; onGrant is run by the
+     * thread that makes the sections free, once all of them are the
+     * holder's.
+     *
+     * @throws IllegalStateException
+     *             if the holder would wait for trains that wait for it.
+     */
+    boolean acquireOrWait(Holder holder, Section[] sections, Runnable onGrant) {
+        return acquireOrWait(holder, sections, onGrant, false);
+    }
+
+    /**
+     * The same, for a request that is timed if the caller is going to
+     * cancel it after a while.
+     */
+    boolean acquireOrWait(Holder holder, Section[] sections, Runnable onGrant, boolean timed) {
+        return queue(holder, sections, onGrant, timed) == null;
+    }
+
+    // Does what acquireOrWait does; returns the request queued, or null if the sections were granted right away
+    private Request queue(Holder holder, Section[] sections, Runnable onGrant, boolean timed) {
+        ArrayList<Runnable> granted;
+        Request request;
+        synchronized (this) {
+            if (tryAcquire(holder, sections))
+                return null;
+            request = new Request(holder, sections, onGrant, timed, requests++);
+            for (Section section : sections)
+                if (!section.holders.contains(holder))
+                    request.needed.add(section);
+            int i = waiting.size();
+            while (i > 0 && isServedBefore(request, waiting.get(i - 1)))
+                i--;
+            waiting.add(i, request);
+            if (!breakWaitCycles()) {
+                waiting.remove(request);
+                throw new IllegalStateException(holder + " would wait for " + request.needed
+                        + " forever, held by trains waiting for it");
+            }
+            granted = grant(); // taking a reservation back may have let requests go, this one too
+            if (granted.remove(onGrant))
+                request = null;
+        }
+        run(granted);
+        return request;
+    }
+
+    /**
+     * Blocks until the sections are granted to the calling holder, or at
+     * most the given time if not negative. The holder's thread is parked
+     * meanwhile, and resumed by the thread granting the sections or the
+     * clock's when the time runs out.
+     *
+     * @return true if they were granted, false if the time ran out.
+     */
+    boolean acquire(Holder holder, Section[] sections, long timeoutNanos) throws InterruptedException {
+        final CountDownLatch granted = new CountDownLatch(1);
+        final SimClock.Parking parking = holder.parking;
+        final Runnable onGrant = new Runnable() {
+            public void run() {
+                parking.resumed();
+                granted.countDown();
+            }
+        };
+        Request request = queue(holder, sections, onGrant, timeoutNanos >= 0);
+        if (request == null)
+            return true;
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        if (timeoutNanos >= 0)
+            clock.runAt(clock.nanoTime() + timeoutNanos, new Runnable() {
+                public void run() {
+                    if (cancel(onGrant)) {
+                        timedOut.set(true);
+                        parking.resumed();
+                        granted.countDown();
+                    }
+                }
+            });
+        parking.parked();
+        try {
+            granted.await();
+            return !timedOut.get();
+        } catch (InterruptedException e) {
+            if (cancel(onGrant))
+                parking.resumed(); // nobody else will
+            else // granted while being interrupted: pass on what this call got, not what was held
+                for (Section section : request.needed)
+                    release(holder, section);
+            throw e;
+        }
+    }
+
+    /**
+     * Withdraws a request queued by acquireOrWait. Returns false if it was
+     * not waiting any more, i.e. the sections have been granted.
+     */
+    boolean cancel(Runnable onGrant) {
+        ArrayList<Runnable> granted;
+        synchronized (this) {
+            Request request = null;
+            for (Request r : waiting)
+                if (r.onGrant == onGrant)
+                    request = r;
+            if (request == null)
+                return false;
+            waiting.remove(request);
+            granted = grant(); // requests after it may go now
+        }
+        run(granted);
+        return true;
+    }
+
+    /**
+     * Returns a section, handing it on to the waiting requests. Does
+     * nothing if the holder does not hold it, e.g. because it was taken
+     * back.
+     */
+    void release(Holder holder, Section section) {
+        ArrayList<Runnable> granted;
+        synchronized (this) {
+            if (!section.holders.remove(holder))
+                return;
+            section.ahead.remove(holder);
+            long now = clock.nanoTime();
+            double sample = now - section.takenAt;
+            section.hold = section.hold == 0 ? sample : section.hold + 0.2 * (sample - section.hold);
+            section.free++;
+            granted = grant();
+        }
+        run(granted);
+    }
+
+    /**
+     * Returns how long it is expected to take until a holder that asks now
+     * gets the section: 0 if it is free, -1 if nothing has been measured
+     * yet.
+     */
+    synchronized long expectedFreeNanos(Section section, long now) {
+        int queued = 0;
+        for (Request request : waiting)
+            if (request.needed.contains(section))
+                queued++;
+        if (section.free > 0 && queued == 0)
+            return 0;
+        if (section.hold == 0)
+            return -1;
+        return Math.max(0, section.takenAt + (long) section.hold - now) + (long) (queued * section.hold);
+    }
+
+    private boolean isFree(Section section) {
+        if (section.free == 0)
+            return false;
+        for (Request request : waiting)
+            if (request.needed.contains(section) && !request.isBlocked())
+                return false;
+        return true;
+    }
+
+    private boolean isServedBefore(Request a, Request b) {
+        switch (policy) {
+        case PRIORITY:
+            if (a.holder.priority != b.holder.priority)
+                return a.holder.priority > b.holder.priority;
+            break;
+        case DEADLINE:
+            if (a.deadline != b.deadline)
+                return a.deadline - b.deadline < 0;
+            break;
+        default:
+            break;
+        }
+        return a.order < b.order;
+    }
+
+    private static void take(Section section, Holder holder, long now) {
+        section.free--;
+        section.holders.add(holder);
+        section.takenAt = now;
+    }
+
+    // Grants the waiting requests that can go, in order, and returns what to run for them
+    private ArrayList<Runnable> grant() {
+        ArrayList<Runnable> granted = new ArrayList<Runnable>();
+        ArrayList<Section> claimed = new ArrayList<Section>(); // by requests passed over
+        long now = clock.nanoTime();
+        for (int i = 0; i < waiting.size(); i++) {
+            Request request = waiting.get(i);
+            if (request.isBlocked())
+                continue;
+            boolean ready = true;
+            for (Section section : request.needed)
+                ready &= !claimed.contains(section);
+            if (!ready) {
+                claimed.addAll(request.needed);
+                continue;
+            }
+            for (Section section : request.needed)
+                take(section, request.holder, now);
+            for (Section section : request.sections)
+                section.ahead.remove(request.holder);
+            waiting.remove(i--);
+            granted.add(request.onGrant);
+        }
+        return granted;
+    }
+
+    private static void run(ArrayList<Runnable> granted) {
+        for (Runnable onGrant : granted)
+            onGrant.run();
+    }
+
+    /*
+     * Takes reservations ahead of time back from trains that wait for each
+     * other, the one served last first, until none do. Returns false if
+     * that is not possible.
+     */
+    private boolean breakWaitCycles() {
+        ArrayList<Holder> stuck;
+        while (!(stuck = stuck()).isEmpty()) {
+            Request victim = null;
+            Section section = null;
+            for (int i = waiting.size() - 1; i >= 0 && victim == null; i--) {
+                Request request = waiting.get(i);
+                if (!stuck.contains(request.holder))
+                    continue;
+                for (Request other : waiting)
+                    for (Section s : other.needed)
+                        if (stuck.contains(other.holder) && s.ahead.contains(request.holder)) {
+                            victim = request;
+                            section = s;
+                        }
+            }
+            if (victim == null)
+                return false;
+            section.holders.remove(victim.holder);
+            section.ahead.remove(victim.holder);
+            section.free++;
+            victim.needed.add(section);
+            revoked++;
+        }
+        return true;
+    }
+
+    /*
+     * Returns the holders of waiting requests that can never be granted,
+     * found by repeatedly setting aside those whose sections will be
+     * returned by someone who is not stuck.
+     */
+    private ArrayList<Holder> stuck() {
+        ArrayList<Holder> stuck = new ArrayList<Holder>();
+        for (Request request : waiting)
+            if (!request.timed)
+                stuck.add(request.holder);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 0; i < waiting.size(); i++) {
+                Request request = waiting.get(i);
+                if (stuck.contains(request.holder) && canGo(request, i, stuck)) {
+                    stuck.remove(request.holder);
+                    changed = true;
+                }
+            }
+        }
+        return stuck;
+    }
+
+    // True if each section the request at index i needs is free for it or held by someone not stuck
+    private boolean canGo(Request request, int i, ArrayList<Holder> stuck) {
+        for (Section section : request.needed) {
+            int ahead = 0; // stuck requests before this one that need the section and could take it
+            for (int j = 0; j < i; j++) {
+                Request other = waiting.get(j);
+                if (stuck.contains(other.holder) && other.needed.contains(section) && !other.isBlocked())
+                    ahead++;
+            }
+            if (section.free > ahead)
+                continue;
+            boolean returned = false;
+            for (Holder holder : section.holders)
+                returned |= !stuck.contains(holder);
+            if (!returned)
+                return false;
+        }
+        return true;
+    }
+}
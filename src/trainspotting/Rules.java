@@ -0,0 +1,459 @@
+package trainspotting;
+
+import TSim.LatencyHistogram;
+import TSim.TSimInterface;
+import TSim.map.TrackMap;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What the trains do at each sensor, read from a rules file kept next to the
+ * map. The file names the sections one train may use at a time, the
+ * double-track regions made of two such lanes, and the sensors and switches
+ * of the map, then lists the steps for each direction and sensor:
+ *
+ * <pre>
+ * section CROSSROAD
+ * region MIDDLE FAST_LANE SLOW_LANE
+ * sensor STATION_NN
+ * switch STATION_N
+ * south STATION_LANE_NN: reserve MIDDLE, acquire SINGLE_LANE_N, switch STATION_N right
+ * south SINGLE_LANE_N: switch MIDDLE_LANE_E right if FAST_LANE else left, leave NORTH_STATION
+ * </pre>
+ *
+ * The sensor and switch lines name the map's sensors and switches in the
+ * order the map numbers them, top to bottom and left to right, so that the
+ * positions are only written down in the map. The rules must name all of
+ * them, and no more, or they are rejected with the position of the first
+ * one left without a name.
+ *
+ * A region may name the switch at one of its ends and the positions that lead
+ * into its primary and secondary lane, as in
+ * <code>region MIDDLE FAST_LANE SLOW_LANE via MIDDLE_LANE_W left right</code>.
+ * The lengths of both lanes are then measured on the map, and a train that
+ * finds the primary lane taken waits for it if that is expected to be quicker
+ * than the detour through the other lane.
+ *
+ * The steps are acquire SECTION|REGION... (reserve all the sections, and the
+ * right to a lane of the regions, at once), release SECTION, hold REGION LANE
+ * (reserve the lane the train stands in), reserve REGION (reserve the primary
+ * lane if free, otherwise the other one), leave REGION, switch SWITCH
+ * left|right, switch SWITCH left|right if LANE else left|right, and station.
+ * Blank lines and lines starting with # are skipped.
+ *
+ * A train may look ahead with approach SECTION|REGION to SENSOR, given at the
+ * sensor before the one where the section, or a permit of the region, is
+ * acquired. The two sensors must be the ends of one segment of the map. If
+ * the section is free, the train reserves it right away and passes the next
+ * sensor without stopping; otherwise it slows down so as to arrive about
+ * when the section is expected to be free, and only stops there if it is
+ * not. A train that did not get one section it approaches does not reserve
+ * any further ones ahead, so sections are still taken in the order of the
+ * acquire steps.
+ *
+ * The order in which waiting trains get sections is set with policy
+ * fifo|priority|deadline (see Reservations); it is fifo if not given.
+ *
+ * The rules are compiled into a table indexed by sensor number and
+ * direction, so finding the steps for an event is a single array load.
+ *
+ */
+
+public final class Rules {
+
+    private static final Step[] NO_STEPS = {};
+    private static final int DIRECTIONS = Lab1.Direction.values().length;
+
+    // A double-track region: two lanes of which trains reserve one before entering
+    static final class Region {
+        final String name;
+        final Section primary, secondary;
+        final Section lanes; // one permit per free lane
+        final int primaryLength, secondaryLength; // in tiles, 0 unless declared with via
+
+        // The train holding the primary lane: when it took it, at what speed, and how long trains held it
+        private long primaryTakenAt;
+        private int primaryHolderSpeed;
+        private double primaryHold; // moving average of time held times speed, 0 until measured
+
+        Region(String name, Section primary, Section secondary, int primaryLength, int secondaryLength) {
+            this.name = name;
+            this.primary = primary;
+            this.secondary = secondary;
+            this.primaryLength = primaryLength;
+            this.secondaryLength = secondaryLength;
+            lanes = new Section(name, 2, primary.reservations);
+        }
+
+        // True if trains weigh waiting for the primary lane against the detour through the other one
+        boolean isTimed() {
+            return primaryLength > 0;
+        }
+
+        synchronized void tookPrimary(long now, int speed) {
+            primaryTakenAt = now;
+            primaryHolderSpeed = speed;
+        }
+
+        synchronized void leftPrimary(long now) {
+            if (primaryTakenAt == 0)
+                return;
+            double sample = (double) (now - primaryTakenAt) * Math.abs(primaryHolderSpeed);
+            primaryHold = primaryHold == 0 ? sample : primaryHold + 0.2 * (sample - primaryHold);
+            primaryTakenAt = 0;
+        }
+
+        /**
+         * Returns how long until the train holding the primary lane is
+         * expected to leave it: as long as trains held it so far, or as long
+         * as it takes to travel its length before that was measured, at the
+         * holder's speed.
+         */
+        synchronized long primaryClearNanos(long now, TravelClock clock) {
+            if (primaryTakenAt == 0 || primaryHolderSpeed == 0)
+                return Long.MAX_VALUE; // held by a train standing in it
+            long hold = primaryHold > 0 ? (long) (primaryHold / Math.abs(primaryHolderSpeed))
+                    : clock.nanos(primaryLength, primaryHolderSpeed);
+            return Math.max(0, primaryTakenAt + hold - now);
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    final Reservations reservations; // of all sections
+    private final Step[][] table; // [sensor * DIRECTIONS + direction]
+    private final Map<String, LatencyHistogram> waits;
+
+    private Rules(Reservations reservations, Step[][] table, Map<String, LatencyHistogram> waits) {
+        this.reservations = reservations;
+        this.table = table;
+        this.waits = Collections.unmodifiableMap(waits);
+    }
+
+    /**
+     * Returns the steps a train heading in the given direction takes at the
+     * sensor with the given number.
+     */
+    Step[] steps(int sensor, Lab1.Direction direction) {
+        Step[] steps = table[sensor * DIRECTIONS + direction.ordinal()];
+        return steps == null ? NO_STEPS : steps;
+    }
+
+    /**
+     * Returns how long trains waited to enter each section, and to reserve a
+     * lane of each region, by name in the order declared. The histograms are
+     * live; take snapshots of them or reset them as needed.
+     */
+    public Map<String, LatencyHistogram> getSectionWaits() {
+        return waits;
+    }
+
+    /**
+     * Loads the rules kept next to the map: the map file name with .map
+     * replaced by .rules.
+     */
+    public static Rules forMap(String mapPath, TrackMap map) throws IOException {
+        String base = mapPath.endsWith(".map") ? mapPath.substring(0, mapPath.length() - 4) : mapPath;
+        return load(base + ".rules", map);
+    }
+
+    /**
+     * Loads the rules in the given file.
+     *
+     * @param path
+     *            the file to read.
+     * @param map
+     *            the map the rules are for.
+     * @return the rules.
+     * @throws IOException
+     *             if the file cannot be read or the rules are not valid for
+     *             the map.
+     */
+    public static Rules load(String path, TrackMap map) throws IOException {
+        Reader in = new FileReader(path);
+        try {
+            return parse(in, map);
+        } catch (IOException e) {
+            throw new IOException(path + ": " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Parses rules from the given reader.
+     *
+     * @param reader
+     *            the text of the rules.
+     * @param map
+     *            the map the rules are for.
+     * @return the rules.
+     * @throws IOException
+     *             if reading fails or the rules are not valid for the map.
+     */
+    public static Rules parse(Reader reader, TrackMap map) throws IOException {
+        return new Parser(map).parse(new BufferedReader(reader));
+    }
+
+    private static final class Parser {
+        private final TrackMap map;
+        private final Reservations reservations = new Reservations();
+        private final HashMap<String, Section> sections = new HashMap<String, Section>();
+        private final HashMap<String, Region> regions = new HashMap<String, Region>();
+        private final HashMap<String, Integer> sensors = new HashMap<String, Integer>();
+        private final HashMap<String, int[]> switches = new HashMap<String, int[]>();
+        private final LinkedHashMap<String, LatencyHistogram> waits = new LinkedHashMap<String, LatencyHistogram>();
+        private final Step[][] table;
+        private final ArrayList<int[]> approaches = new ArrayList<int[]>(); // line, table index, step, target
+        private int lineNo;
+
+        Parser(TrackMap map) {
+            this.map = map;
+            table = new Step[map.getSensorCount() * DIRECTIONS][];
+        }
+
+        Rules parse(BufferedReader in) throws IOException {
+            String line;
+            for (lineNo = 1; (line = in.readLine()) != null; lineNo++) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                int colon = line.indexOf(':');
+                String[] tok = (colon < 0 ? line : line.substring(0, colon)).trim().split("\\s+");
+                if (tok[0].equals("section")) {
+                    expect(tok, 2);
+                    Section section = new Section(tok[1], 1, reservations);
+                    declare(sections, tok[1], section);
+                    declare(waits, tok[1], section.waits);
+                } else if (tok[0].equals("region")) {
+                    if (tok.length != 8 || !tok[4].equals("via"))
+                        expect(tok, 4);
+                    int primaryLength = 0, secondaryLength = 0;
+                    if (tok.length == 8) {
+                        int[] pos = railSwitch(tok[5]);
+                        int sw = map.switchAt(pos[0], pos[1]);
+                        primaryLength = laneLength(sw, switchDirection(tok[6]));
+                        secondaryLength = laneLength(sw, switchDirection(tok[7]));
+                    }
+                    Region region = new Region(tok[1], section(tok[2]), section(tok[3]), primaryLength,
+                            secondaryLength);
+                    declare(regions, tok[1], region);
+                    declare(waits, tok[1], region.lanes.waits); // sections and regions share one namespace
+                } else if (tok[0].equals("sensor")) {
+                    expect(tok, 2);
+                    if (sensors.size() == map.getSensorCount())
+                        throw error("more sensors named than the map's " + map.getSensorCount());
+                    declare(sensors, tok[1], sensors.size());
+                } else if (tok[0].equals("switch")) {
+                    expect(tok, 2);
+                    if (switches.size() == map.getSwitchCount())
+                        throw error("more switches named than the map's " + map.getSwitchCount());
+                    int tile = map.switchTile(switches.size());
+                    declare(switches, tok[1], new int[] { map.tileX(tile), map.tileY(tile) });
+                } else if (tok[0].equals("policy")) {
+                    expect(tok, 2);
+                    try {
+                        reservations.setPolicy(Reservations.Policy.valueOf(tok[1].toUpperCase()));
+                    } catch (IllegalArgumentException e) {
+                        throw error("unknown policy " + tok[1]);
+                    }
+                } else if (colon >= 0) {
+                    expect(tok, 2);
+                    rule(direction(tok[0]), sensor(tok[1]), line.substring(colon + 1));
+                } else {
+                    throw error("unknown entry " + tok[0]);
+                }
+            }
+            checkNames();
+            checkApproaches();
+            return new Rules(reservations, table, waits);
+        }
+
+        // Makes sure every sensor and switch of the map got a name, so that no name is bound to the wrong one
+        private void checkNames() throws IOException {
+            if (sensors.size() < map.getSensorCount()) {
+                int tile = map.sensorTile(sensors.size());
+                throw new IOException("the rules name " + sensors.size() + " of the map's " + map.getSensorCount()
+                        + " sensors, the first without a name is at (" + map.tileX(tile) + "," + map.tileY(tile) + ")");
+            }
+            if (switches.size() < map.getSwitchCount()) {
+                int tile = map.switchTile(switches.size());
+                throw new IOException("the rules name " + switches.size() + " of the map's " + map.getSwitchCount()
+                        + " switches, the first without a name is at (" + map.tileX(tile) + "," + map.tileY(tile)
+                        + ")");
+            }
+        }
+
+        // Makes sure every section approached is acquired at the sensor the train approaches
+        private void checkApproaches() throws IOException {
+            for (int[] approach : approaches) {
+                lineNo = approach[0];
+                Step step = table[approach[1]][approach[2]];
+                Step[] next = table[approach[3]];
+                boolean acquired = false;
+                for (int i = 0; next != null && i < next.length; i++)
+                    if (next[i].op == Step.Op.ACQUIRE)
+                        for (Section section : next[i].sections)
+                            acquired |= section == step.section;
+                if (!acquired)
+                    throw error(step.section + " is not acquired at the sensor approached");
+            }
+        }
+
+        private void rule(Lab1.Direction direction, int sensor, String text) throws IOException {
+            int index = sensor * DIRECTIONS + direction.ordinal();
+            if (table[index] != null)
+                throw error("second rule for this sensor and direction");
+            ArrayList<Step> steps = new ArrayList<Step>();
+            for (String part : text.split(",")) {
+                String[] tok = part.trim().split("\\s+");
+                if (tok[0].equals("acquire")) {
+                    if (tok.length < 2)
+                        throw error("expected at least 1 argument to acquire");
+                    Section[] acquired = new Section[tok.length - 1];
+                    for (int i = 1; i < tok.length; i++)
+                        acquired[i - 1] = sectionOrLanes(tok[i]);
+                    steps.add(Step.acquire(acquired));
+                } else if (tok[0].equals("approach")) {
+                    if (tok.length != 4 || !tok[2].equals("to"))
+                        throw error("expected approach SECTION to SENSOR");
+                    Section section = sectionOrLanes(tok[1]);
+                    int target = sensor(tok[3]);
+                    approaches.add(new int[] { lineNo, index, steps.size(),
+                            target * DIRECTIONS + direction.ordinal() });
+                    steps.add(Step.approach(section, tiles(sensor, target)));
+                } else if (tok[0].equals("release")) {
+                    expect(tok, 2);
+                    steps.add(Step.release(section(tok[1])));
+                } else if (tok[0].equals("hold")) {
+                    expect(tok, 3);
+                    Region region = region(tok[1]);
+                    Section lane = section(tok[2]);
+                    if (lane != region.primary && lane != region.secondary)
+                        throw error(tok[2] + " is not a lane of " + tok[1]);
+                    steps.add(Step.acquire(region.lanes));
+                    steps.add(Step.acquire(lane));
+                } else if (tok[0].equals("reserve")) {
+                    expect(tok, 2);
+                    Region region = region(tok[1]);
+                    steps.add(Step.acquire(region.lanes));
+                    steps.add(Step.takeLane(region));
+                } else if (tok[0].equals("leave")) {
+                    expect(tok, 2);
+                    steps.add(Step.releaseLane(region(tok[1])));
+                } else if (tok[0].equals("switch") && tok.length == 3) {
+                    int[] pos = railSwitch(tok[1]);
+                    steps.add(Step.setSwitch(pos[0], pos[1], switchDirection(tok[2])));
+                } else if (tok[0].equals("switch") && tok.length == 7 && tok[3].equals("if") && tok[5].equals("else")) {
+                    int[] pos = railSwitch(tok[1]);
+                    steps.add(Step.switchForLane(pos[0], pos[1], section(tok[4]), switchDirection(tok[2]),
+                            switchDirection(tok[6])));
+                } else if (tok[0].equals("station")) {
+                    expect(tok, 1);
+                    steps.add(Step.station());
+                } else {
+                    throw error("unknown step " + part.trim());
+                }
+            }
+            table[index] = steps.toArray(new Step[steps.size()]);
+        }
+
+        // The length of the segment joining two sensors
+        private int tiles(int from, int to) throws IOException {
+            int tile = map.sensorTile(from);
+            for (int side = 0; side < 4; side++)
+                if (map.segmentEnd(tile, side) == map.sensorTile(to))
+                    return map.segmentLength(tile, side);
+            throw error("the sensors at (" + map.tileX(tile) + "," + map.tileY(tile) + ") and ("
+                    + map.tileX(map.sensorTile(to)) + "," + map.tileY(map.sensorTile(to))
+                    + ") are not joined by one segment");
+        }
+
+        // The number of tiles from the switch, set to the given position, to the next switch
+        private int laneLength(int sw, int direction) throws IOException {
+            int tile = map.switchTile(sw);
+            int side = map.route(tile, map.switchStem(sw), direction);
+            int length = 0;
+            for (int n = 0; n < map.getTileCount() && side >= 0; n++) {
+                int end = map.segmentEnd(tile, side);
+                if (end < 0)
+                    break;
+                length += map.segmentLength(tile, side);
+                if (map.switchAtTile(end) >= 0)
+                    return length;
+                side = map.route(end, map.segmentEntry(tile, side), TSimInterface.SWITCH_LEFT);
+                tile = end;
+            }
+            throw error("the lane leaving the switch at (" + map.tileX(map.switchTile(sw)) + ","
+                    + map.tileY(map.switchTile(sw)) + ") does not lead to another switch");
+        }
+
+        private <T> void declare(Map<String, T> names, String name, T value) throws IOException {
+            if (names.put(name, value) != null)
+                throw error(name + " declared twice");
+        }
+
+        private Section section(String name) throws IOException {
+            return lookup(sections, name, "section");
+        }
+
+        // The section of the given name, or the permits for the lanes of the region of that name
+        private Section sectionOrLanes(String name) throws IOException {
+            return regions.containsKey(name) ? regions.get(name).lanes : section(name);
+        }
+
+        private Region region(String name) throws IOException {
+            return lookup(regions, name, "region");
+        }
+
+        private int sensor(String name) throws IOException {
+            return lookup(sensors, name, "sensor");
+        }
+
+        private int[] railSwitch(String name) throws IOException {
+            return lookup(switches, name, "switch");
+        }
+
+        private <T> T lookup(HashMap<String, T> names, String name, String kind) throws IOException {
+            T value = names.get(name);
+            if (value == null)
+                throw error("unknown " + kind + " " + name);
+            return value;
+        }
+
+        private Lab1.Direction direction(String name) throws IOException {
+            if (name.equals("north"))
+                return Lab1.Direction.NORTH;
+            if (name.equals("south"))
+                return Lab1.Direction.SOUTH;
+            throw error("unknown direction " + name);
+        }
+
+        private int switchDirection(String name) throws IOException {
+            if (name.equals("left"))
+                return TSimInterface.SWITCH_LEFT;
+            if (name.equals("right"))
+                return TSimInterface.SWITCH_RIGHT;
+            throw error("unknown switch direction " + name);
+        }
+
+        private void expect(String[] tok, int count) throws IOException {
+            if (tok.length != count)
+                throw error("expected " + (count - 1) + " arguments to " + tok[0]);
+        }
+
+        private IOException error(String message) {
+            return new IOException("line " + lineNo + ": " + message);
+        }
+    }
+}
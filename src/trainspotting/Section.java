@@ -0,0 +1,102 @@
+package trainspotting;
+
+import TSim.LatencyHistogram;
+
+import java.util.ArrayList;
+
+/**
+ * A part of the track that only a limited number of trains may use at once.
+ * Sections are handed out by the Reservations they belong to, which decides
+ * in what order waiting trains get them; trains wait either by blocking
+ * their thread or, in reactor mode, by leaving a continuation that is run
+ * once the section has been handed over to them. How long trains waited is
+ * recorded in the section's histogram by the trains themselves.
+ *
+ * The section also keeps a moving average of how long a permit is held, so
+ * that a train ahead of it can tell roughly when it will be free. For a
+ * section with more than one permit this is only a rough guess.
+ *
+ */
+
+final class Section {
+
+    final String name;
+    final Reservations reservations;
+    final LatencyHistogram waits = new LatencyHistogram(); // time trains spent waiting to enter
+
+    // Guarded by reservations
+    int free;
+    final ArrayList<Reservations.Holder> holders = new ArrayList<Reservations.Holder>();
+    final ArrayList<Reservations.Holder> ahead = new ArrayList<Reservations.Holder>(); // may be taken back
+    long takenAt; // when a permit was last taken
+    double hold; // moving average of the time a permit is held, 0 until measured
+
+    // A section of its own, first come first served
+    Section(String name, int capacity) {
+        this(name, capacity, new Reservations());
+    }
+
+    Section(String name, int capacity, Reservations reservations) {
+        this.name = name;
+        this.reservations = reservations;
+        free = capacity;
+    }
+
+    boolean tryAcquire(Reservations.Holder holder) {
+        return reservations.tryAcquire(holder, new Section[] { this });
+    }
+
+    /**
+     * Takes a permit if one is free and returns true. Otherwise queues
+     * onGrant and returns false; onGrant is run by the thread releasing the
+     * permit that is handed over to the waiter. The request is timed if the
+     * caller is going to cancel it after a while.
+     */
+    boolean acquireOrWait(Reservations.Holder holder, Runnable onGrant, boolean timed) {
+        return reservations.acquireOrWait(holder, new Section[] { this }, onGrant, timed);
+    }
+
+    /**
+     * Withdraws a continuation queued by acquireOrWait. Returns false if it
+     * was not waiting any more, i.e. the permit has been granted to it.
+     */
+    boolean cancel(Runnable onGrant) {
+        return reservations.cancel(onGrant);
+    }
+
+    /**
+     * Blocks until a permit is granted to the calling thread.
+     */
+    void acquire(Reservations.Holder holder) throws InterruptedException {
+        acquire(holder, -1);
+    }
+
+    /**
+     * Blocks until a permit is granted to the calling thread, or at most the
+     * given time if not negative.
+     *
+     * @return true if the permit was granted, false if the time ran out.
+     */
+    boolean acquire(Reservations.Holder holder, long timeoutNanos) throws InterruptedException {
+        return reservations.acquire(holder, new Section[] { this }, timeoutNanos);
+    }
+
+    /**
+     * Returns a permit, handing it to the next waiting train if any.
+     */
+    void release(Reservations.Holder holder) {
+        reservations.release(holder, this);
+    }
+
+    /**
+     * Returns how long it is expected to take until a train that asks now
+     * gets a permit: 0 if one is free, -1 if nothing has been measured yet.
+     */
+    long expectedFreeNanos(long now) {
+        return reservations.expectedFreeNanos(this, now);
+    }
+
+    public String toString() {
+        return name;
+    }
+}
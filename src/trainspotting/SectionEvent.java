@@ -0,0 +1,71 @@
+package trainspotting;
+
+import TSim.PackedEvent;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for a train acquiring, taking or releasing a
+ * section. An acquisition lasts as long as the train waited for the section,
+ * so contention lines up with GC pauses and thread scheduling in the
+ * recording.
+ *
+ */
+
+@Name("trainspotting.Section")
+@Label("Section")
+@Category("Trainspotting")
+@Description("A train acquiring or releasing a section of track")
+final class SectionEvent extends jdk.jfr.Event {
+
+    static final String ACQUIRE = "acquire";
+    static final String TAKE_LANE = "take lane";
+    static final String RELEASE = "release";
+
+    @Label("Train Id")
+    int trainId;
+
+    @Label("Section")
+    String section;
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Sensor X")
+    @Description("The position of the sensor the train was handling")
+    int sensorX;
+
+    @Label("Sensor Y")
+    int sensorY;
+
+    // Ends the event and commits it unless recording is off. sensorEvent is packed, 0 if there is none.
+    void commit(String operation, int trainId, Section section, long sensorEvent) {
+        end();
+        if (shouldCommit())
+            commit(operation, trainId, section.name, sensorEvent);
+    }
+
+    // The same for sections acquired at once, named together
+    void commit(String operation, int trainId, Section[] sections, long sensorEvent) {
+        end();
+        if (!shouldCommit())
+            return;
+        StringBuilder names = new StringBuilder(sections[0].name);
+        for (int i = 1; i < sections.length; i++)
+            names.append('+').append(sections[i].name);
+        commit(operation, trainId, names.toString(), sensorEvent);
+    }
+
+    private void commit(String operation, int trainId, String section, long sensorEvent) {
+        this.operation = operation;
+        this.trainId = trainId;
+        this.section = section;
+        if (sensorEvent != 0) {
+            sensorX = PackedEvent.xPos(sensorEvent);
+            sensorY = PackedEvent.yPos(sensorEvent);
+        }
+        commit();
+    }
+}
@@ -0,0 +1,236 @@
+package trainspotting;
+
+import TSim.sim.HeadlessSimulator;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The time the controller goes by: when trains waited, how long trips took,
+ * how long a train stays at a station. It is the time of the simulation,
+ * which need not pass like real time:
+ *
+ * - real: real time, whatever the simulation does,
+ * - scaled: real time scaled to the simulator's --speed, so that a step
+ *   always stands for STEP_MILLIS as with the default --speed of 20,
+ * - virtual: STEP_MILLIS per step taken by the in-process simulator, and
+ *   nothing else; a train at a station holds up nobody.
+ *
+ * With a scaled or virtual clock, a simulation running faster than real
+ * time sees the trains behave as in one at the default speed.
+ *
+ * A virtual clock only moves on while the controller waits for the
+ * simulator, so a train's thread that blocks on the clock or on another
+ * train says so through a Parking.
+ *
+ */
+
+abstract class SimClock {
+
+    static final int STEP_MILLIS = 20; // what a step of the simulation stands for
+    private static final long STEP_NANOS = STEP_MILLIS * 1000000L;
+
+    static final SimClock REAL = new Scaled(STEP_MILLIS);
+
+    /**
+     * A thread blocking until the clock or another thread wakes it up, as
+     * far as the simulation is concerned: parked is called by the thread
+     * itself once it is about to block, and resumed by whoever wakes it up,
+     * before doing so. A fast in-process simulator only takes a step while
+     * the thread of every train waits for it or is parked (see
+     * TSimInterface.parked).
+     */
+    interface Parking {
+        void parked();
+
+        void resumed();
+    }
+
+    // For threads the simulation does not wait for
+    static final Parking UNTRACKED = new Parking() {
+        public void parked() {
+        }
+
+        public void resumed() {
+        }
+    };
+
+    /**
+     * Returns the current time in nanoseconds, only meaningful compared to
+     * other times of the same clock.
+     */
+    abstract long nanoTime();
+
+    /**
+     * Runs the task, on a thread of the clock's own or the one advancing
+     * it, once the clock has reached the given time.
+     */
+    abstract void runAt(long nanos, Runnable task);
+
+    /**
+     * Runs the task once the given number of milliseconds has passed.
+     */
+    void schedule(long millis, Runnable task) {
+        runAt(nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), task);
+    }
+
+    /**
+     * Blocks the calling thread for the given number of milliseconds.
+     */
+    void sleep(long millis) throws InterruptedException {
+        sleep(millis, UNTRACKED);
+    }
+
+    /**
+     * The same, parking the thread meanwhile.
+     */
+    void sleep(long millis, final Parking parking) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean woken = new AtomicBoolean();
+        schedule(millis, new Runnable() {
+            public void run() {
+                if (woken.compareAndSet(false, true))
+                    parking.resumed();
+                done.countDown();
+            }
+        });
+        parking.parked();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            if (woken.compareAndSet(false, true))
+                parking.resumed();
+            throw e;
+        }
+    }
+
+    // The thread tasks run on, one per clock
+    static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Returns a clock that runs STEP_MILLIS / stepMillis times as fast as
+     * real time, for a simulator taking a step every stepMillis.
+     */
+    static SimClock scaled(int stepMillis) {
+        return stepMillis == STEP_MILLIS ? REAL : new Scaled(stepMillis);
+    }
+
+    private static final class Scaled extends SimClock {
+        private final int stepMillis;
+        private final long origin = System.nanoTime();
+        private ScheduledExecutorService timer; // started on first use
+
+        Scaled(int stepMillis) {
+            this.stepMillis = stepMillis;
+        }
+
+        long nanoTime() {
+            return (System.nanoTime() - origin) * STEP_MILLIS / stepMillis;
+        }
+
+        synchronized void runAt(long nanos, Runnable task) {
+            if (timer == null)
+                timer = Executors.newSingleThreadScheduledExecutor(daemon("sim-clock"));
+            timer.schedule(task, realNanos(nanos - nanoTime()), TimeUnit.NANOSECONDS);
+        }
+
+        void sleep(long millis, Parking parking) throws InterruptedException {
+            parking.parked();
+            try {
+                TimeUnit.NANOSECONDS.sleep(realNanos(TimeUnit.MILLISECONDS.toNanos(millis)));
+            } finally {
+                parking.resumed();
+            }
+        }
+
+        private long realNanos(long nanos) {
+            return Math.max(0, nanos) * stepMillis / STEP_MILLIS;
+        }
+    }
+
+    /**
+     * A clock advanced by the simulator: stepped must be called after each
+     * step, e.g. by HeadlessSimulator.setStepListener. Tasks that become due
+     * run on the thread calling stepped before it returns, one at a time:
+     * after each, the simulator settles, waiting until the controller has
+     * reacted to it and waits for the simulator again. A train woken up at
+     * the end of a station stop, say, has then set off before the next
+     * task runs and before the next step. A task asked for at a time already
+     * reached waits for the next step in the same way.
+     */
+    static final class Virtual extends SimClock {
+
+        // A task to run at a given time
+        private static final class Timer implements Comparable<Timer> {
+            final long nanos;
+            final Runnable task;
+
+            Timer(long nanos, Runnable task) {
+                this.nanos = nanos;
+                this.task = task;
+            }
+
+            public int compareTo(Timer other) {
+                return Long.compare(nanos, other.nanos);
+            }
+        }
+
+        private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+        private final HeadlessSimulator sim;
+        private volatile long now = STEP_NANOS; // the first step is under way
+
+        private Virtual(HeadlessSimulator sim) {
+            this.sim = sim;
+        }
+
+        // Returns a clock advanced by the given simulator, which must not have another step listener
+        static Virtual steppedBy(HeadlessSimulator sim) {
+            final Virtual clock = new Virtual(sim);
+            sim.setStepListener(new Runnable() {
+                public void run() {
+                    clock.stepped();
+                }
+            });
+            return clock;
+        }
+
+        long nanoTime() {
+            return now;
+        }
+
+        synchronized void runAt(long nanos, Runnable task) {
+            timers.add(new Timer(nanos, task)); // even if due already, so that it runs between steps too
+        }
+
+        // Called after each step of the simulation
+        void stepped() {
+            long time;
+            synchronized (this) {
+                time = now += STEP_NANOS;
+            }
+            Runnable task;
+            while ((task = due(time)) != null) {
+                task.run();
+                sim.settle();
+            }
+        }
+
+        // Removes the next task due at the given time, or returns null
+        private synchronized Runnable due(long time) {
+            return !timers.isEmpty() && timers.peek().nanos <= time ? timers.poll().task : null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package trainspotting;
+
+import TSim.CommandException;
+import TSim.LatencyHistogram;
+import TSim.TSimInterface;
+import TSim.map.TrackMap;
+import TSim.sim.HeadlessSimulator;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs of the controller against the in-process simulator, in this JVM, for
+ * the tools that make many runs at once (see Sweep and Soak). Each run has a
+ * simulator, a TSimInterface client, rules and a clock of its own, and gets
+ * the limits it varies as arguments, so runs on the threads of one pool only
+ * share the map. The trains are stopped after the given time of the
+ * simulation, and the run returns whether a train failed, how many station
+ * stops the trains made and the waits for each section. A run in which no
+ * train got to a station, or the controller stalled the simulator, failed
+ * as well. A run that failed without a train crashing failed on a command
+ * the simulator refused, such as reversing a train that still moves.
+ *
+ * As fast as it goes, a run goes by a virtual clock advanced by the steps of
+ * the simulator, which waits for the controller at every step, so that the
+ * same run always goes the same way (see HeadlessSimulator); in real time, by
+ * real time scaled to the simulation speed (see SimClock). Either way its
+ * throughput is in the time of the simulation, and so does not depend on how
+ * busy the machine is.
+ *
+ */
+
+final class SimRun {
+
+    // How a run went
+    static final class Result {
+        final String result; // "ok", the failure, a stall, or why the run could not be made
+        final boolean commandFailed; // the failure was a command refused while no train crashed
+        final int stationStops;
+        final long nanos; // of the simulation the run lasted
+        final Map<String, String> waits; // histogram summary by section
+
+        Result(String result, boolean commandFailed, int stationStops, long nanos, Map<String, String> waits) {
+            this.result = result;
+            this.commandFailed = commandFailed;
+            this.stationStops = stationStops;
+            this.nanos = nanos;
+            this.waits = waits;
+        }
+
+        Result(String result) {
+            this(result, false, 0, 0, new LinkedHashMap<String, String>());
+        }
+
+        boolean isSafe() {
+            return "ok".equals(result);
+        }
+
+        // The station stops the trains made per minute of the simulation
+        double stopsPerMinute() {
+            return nanos == 0 ? 0 : stationStops * (double) TimeUnit.MINUTES.toNanos(1) / nanos;
+        }
+    }
+
+    private final String mapPath;
+    private final TrackMap map;
+    private final int seconds;
+
+    SimRun(String mapPath, TrackMap map, int seconds) {
+        this.mapPath = mapPath;
+        this.map = map;
+        this.seconds = seconds;
+    }
+
+    /**
+     * Runs the fleet for the given time of the simulation, with the given
+     * speed limit and time spent at stations (see Lab1), and returns how it
+     * went. The time at stations is in the time of the simulation, as the
+     * clock of the run goes. The simulator goes at the given pace, in real
+     * time taking a step every stepMillis.
+     */
+    Result run(Fleet fleet, int maxSpeed, long dwellMillis, HeadlessSimulator.Pace pace, int stepMillis) {
+        HeadlessSimulator sim = null;
+        try {
+            Rules rules = Rules.forMap(mapPath, map); // each client needs rules of its own
+            sim = new HeadlessSimulator(map, pace, stepMillis);
+            TSimInterface tsi = TSimInterface.open(sim.getInputStream(), sim.getOutputStream(), map.getTrainCount());
+            sim.attach(tsi);
+            SimClock clock = pace == HeadlessSimulator.Pace.FAST ? SimClock.Virtual.steppedBy(sim)
+                    : SimClock.scaled(stepMillis);
+            long start = clock.nanoTime();
+            Lab1 lab = new Lab1(map, rules, fleet, Lab1.Mode.PLATFORM, clock, tsi, maxSpeed, dwellMillis);
+            clock.schedule(TimeUnit.SECONDS.toMillis(seconds), lab::shutdown);
+            sim.start(); // once the trains have been set up, so that no time passes before they start
+            Throwable failure = lab.join(); // only returns once a train has failed, or after the time given
+            long nanos = clock.nanoTime() - start;
+            Map<String, String> waits = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, LatencyHistogram> section : rules.getSectionWaits().entrySet())
+                waits.put(section.getKey(), section.getValue().snapshot().toString());
+            String result = "ok";
+            if (failure != null)
+                result = failure.getMessage();
+            else if (sim.getStalls() > 0)
+                result = "stalled: the controller kept the simulator waiting " + sim.getStalls() + " times";
+            else if (lab.getStationStops() == 0)
+                result = "stalled: no train got to a station";
+            return new Result(result, failure instanceof CommandException && sim.getCrashes() == 0,
+                    lab.getStationStops(), nanos, waits);
+        } catch (IOException e) {
+            return new Result("could not be started: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            return new Result("could not be started: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result("interrupted");
+        } finally {
+            if (sim != null)
+                sim.stop(); // ends the client, whose threads then stop
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package trainspotting;
+
+import TSim.map.TrackMap;
+import TSim.map.TrackMapParser;
+import TSim.sim.HeadlessSimulator;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs a matrix of long runs at once and reports them together, in place of
+ * running each combination for hours in an instance of its own. Each line of
+ * the matrix gives the speeds of the two trains, the simulation speed and
+ * optionally the time spent at stations in milliseconds; blank lines and
+ * lines starting with # are skipped:
+ *
+ * <pre>
+ * # speed1 speed2 simulation [dwell]
+ * 17 14 1
+ * 16 8 1 100
+ * </pre>
+ *
+ * The time at stations is in real milliseconds at the simulation speed of
+ * the line, as when tsim runs with that --speed: 100 ms at simulation speed
+ * 1 are 100 steps, which the run spends at stations as 2000 ms of the
+ * simulation (see SimClock.STEP_MILLIS), whatever its pace.
+ *
+ * Without a matrix file, the nine combinations tested for the longest (see
+ * documentation.txt) are run. All runs are made in this JVM (see SimRun) and
+ * share a pool of threads, one run per thread at a time, and each runs
+ * against the in-process simulator on a clock of its own: as fast as it goes
+ * ("fast", the default) or in real time at the simulation speed
+ * ("headless"). The report lists for each run whether a train failed and
+ * how, the station stops made per minute of the simulation and the waits for
+ * each section. A run in which the trains got nowhere counts as failed.
+ *
+ * As fast as it goes, a run takes the same steps at any simulation speed
+ * and always goes the same way, so the simulation column is ignored and
+ * lines that only differ in it are run once; the report says so.
+ *
+ * <pre>
+ * java -cp bin trainspotting.Soak Lab1.map 600 [matrix.txt|-] [parallelism] [fast|headless]
+ * </pre>
+ *
+ */
+
+public final class Soak {
+
+    // The combinations of documentation.txt: speed1, speed2, simulation
+    private static final int[][] DOCUMENTED = { { 1, 1, 20 }, { 17, 17, 20 }, { 5, 10, 20 }, { 12, 17, 10 },
+            { 17, 14, 1 }, { 9, 17, 10 }, { 4, 14, 20 }, { 16, 8, 1 }, { 1, 17, 20 } };
+
+    // One line of the matrix and how it went
+    static final class Run {
+        final int speed1, speed2, simulation; // simulation is 0 where ignored
+        final long dwellMillis; // of the simulation, negative for the controller's default
+        SimRun.Result outcome; // null until made
+
+        Run(int speed1, int speed2, int simulation, long dwellMillis) {
+            this.speed1 = speed1;
+            this.speed2 = speed2;
+            this.simulation = simulation;
+            this.dwellMillis = dwellMillis;
+        }
+
+        public String toString() {
+            return "speed1 " + speed1 + " speed2 " + speed2 + (simulation > 0 ? " simulation " + simulation : "")
+                    + (dwellMillis >= 0 ? " dwell " + dwellMillis + " ms of the simulation" : "");
+        }
+
+        // True if the run is the same as the other one but for the simulation speed
+        boolean sameSpeeds(Run other) {
+            return speed1 == other.speed1 && speed2 == other.speed2 && dwellMillis == other.dwellMillis;
+        }
+    }
+
+    private final SimRun simRun;
+    private final int seconds;
+    private final HeadlessSimulator.Pace pace;
+    private final List<Run> runs;
+    private final int merged; // lines of the matrix run once for their speeds, as fast as it goes
+
+    Soak(String mapPath, TrackMap map, int seconds, HeadlessSimulator.Pace pace, List<Run> runs) {
+        simRun = new SimRun(mapPath, map, seconds);
+        this.seconds = seconds;
+        this.pace = pace;
+        this.runs = pace == HeadlessSimulator.Pace.FAST ? withoutSimulation(runs) : runs;
+        merged = runs.size() - this.runs.size();
+    }
+
+    // The runs without their simulation speed, each combination of speeds once
+    private static List<Run> withoutSimulation(List<Run> runs) {
+        List<Run> distinct = new ArrayList<Run>();
+        for (Run run : runs) {
+            boolean seen = false;
+            for (Run other : distinct)
+                seen |= run.sameSpeeds(other);
+            if (!seen)
+                distinct.add(new Run(run.speed1, run.speed2, 0, run.dwellMillis));
+        }
+        return distinct;
+    }
+
+    /**
+     * Makes all runs, at most parallelism at a time.
+     */
+    void soak(int parallelism) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for (final Run run : runs)
+                tasks.add(Executors.callable(new Runnable() {
+                    public void run() {
+                        run.outcome = simRun.run(Fleet.pair(run.speed1, run.speed2), Lab1.DEFAULT_MAX_SPEED,
+                                run.dwellMillis, pace, run.simulation);
+                    }
+                }));
+            pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    void print() {
+        if (pace == HeadlessSimulator.Pace.FAST)
+            System.out.println("as fast as it goes, simulation speeds are ignored"
+                    + (merged > 0 ? ", and " + merged + " of the matrix lines that only differed in it were left out" : ""));
+        int failed = 0;
+        for (int i = 0; i < runs.size(); i++) {
+            Run run = runs.get(i);
+            System.out.println(String.format("#%d %s: %s, %.1f station stops/min", i + 1, run, run.outcome.result,
+                    run.outcome.stopsPerMinute()));
+            for (Map.Entry<String, String> waits : run.outcome.waits.entrySet())
+                System.out.println("    waits for " + waits.getKey() + ": " + waits.getValue());
+            if (!run.outcome.isSafe())
+                failed++;
+        }
+        System.out.println(runs.size() + " runs of " + seconds + " s of the simulation, " + failed + " failed");
+    }
+
+    public static void main(String[] args) {
+        try {
+            List<Run> runs = args.length > 2 && !args[2].equals("-") ? load(args[2]) : documented();
+            int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+            String pace = args.length > 4 ? args[4] : "fast";
+            if (!pace.equals("fast") && !pace.equals("headless"))
+                throw new IllegalArgumentException("unknown pace " + pace);
+            Soak soak = new Soak(args[0], TrackMapParser.load(args[0]), Integer.parseInt(args[1]),
+                    pace.equals("fast") ? HeadlessSimulator.Pace.FAST : HeadlessSimulator.Pace.REALTIME, runs);
+            soak.soak(parallelism);
+            soak.print();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.err.println("Soak expects 2-5 arguments: Lab1.map <SecondsPerRun> [<MatrixFile>|-] [Parallelism] "
+                    + "[fast|headless]");
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static List<Run> documented() {
+        List<Run> runs = new ArrayList<Run>();
+        for (int[] run : DOCUMENTED)
+            runs.add(new Run(run[0], run[1], run[2], -1));
+        return runs;
+    }
+
+    // The time of the simulation that passes in the given real time at the given simulation speed
+    private static long simulationMillis(long millis, int simulation) {
+        return millis < 0 ? -1 : millis * SimClock.STEP_MILLIS / simulation;
+    }
+
+    // Reads a matrix file as described above
+    private static List<Run> load(String path) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try {
+            List<Run> runs = new ArrayList<Run>();
+            String line;
+            for (int lineNo = 1; (line = in.readLine()) != null; lineNo++) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] tok = line.split("\\s+");
+                if (tok.length != 3 && tok.length != 4)
+                    throw new IOException(path + ": line " + lineNo
+                            + ": expected speed1, speed2, simulation and optionally dwell");
+                try {
+                    int simulation = Integer.parseInt(tok[2]);
+                    if (simulation <= 0)
+                        throw new IOException(path + ": line " + lineNo + ": simulation speed must be positive");
+                    runs.add(new Run(Integer.parseInt(tok[0]), Integer.parseInt(tok[1]), simulation,
+                            tok.length == 4 ? simulationMillis(Long.parseLong(tok[3]), simulation) : -1));
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ": line " + lineNo + ": number expected");
+                }
+            }
+            return runs;
+        } finally {
+            in.close();
+        }
+    }
+}
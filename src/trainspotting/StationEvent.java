@@ -0,0 +1,45 @@
+package trainspotting;
+
+import TSim.PackedEvent;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Flight Recorder event for a train stopping at a station, lasting from
+ * the stop to its departure in the other direction.
+ *
+ */
+
+@Name("trainspotting.Station")
+@Label("Station Stop")
+@Category("Trainspotting")
+@Description("A train stopping at a station and heading back")
+final class StationEvent extends jdk.jfr.Event {
+
+    @Label("Train Id")
+    int trainId;
+
+    @Label("Sensor X")
+    @Description("The position of the station sensor")
+    int sensorX;
+
+    @Label("Sensor Y")
+    int sensorY;
+
+    @Label("Departure Direction")
+    String direction;
+
+    // Ends the event and commits it unless recording is off. sensorEvent is packed.
+    void commit(int trainId, long sensorEvent, Lab1.Direction direction) {
+        end();
+        if (!shouldCommit())
+            return;
+        this.trainId = trainId;
+        sensorX = PackedEvent.xPos(sensorEvent);
+        sensorY = PackedEvent.yPos(sensorEvent);
+        this.direction = direction.name();
+        commit();
+    }
+}
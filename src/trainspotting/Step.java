@@ -0,0 +1,77 @@
+package trainspotting;
+
+/**
+ * One operation a train performs when it passes a sensor, as listed in a
+ * rules file. There is a single final Step class and the operation is an
+ * enum switched over, so executing a step involves no virtual calls.
+ *
+ */
+
+final class Step {
+
+    enum Op {
+        ACQUIRE, // wait until the sections are free and reserve all of them at once
+        APPROACH, // reserve the section if free, otherwise slow down until the sensor where it is acquired
+        TAKE_LANE, // reserve the primary lane of the region if free, otherwise the other one
+        RELEASE, // free the section
+        RELEASE_LANE, // free the reserved lane of the region
+        SWITCH, // set the switch
+        SWITCH_FOR_LANE, // set the switch towards the reserved lane: direction if it is the given lane
+        STATION // stop, wait, and head back
+    }
+
+    final Op op;
+    final Section[] sections; // ACQUIRE
+    final Section section; // APPROACH, RELEASE
+    final int tiles; // APPROACH: to the sensor where the section is acquired
+    final Rules.Region region; // TAKE_LANE, RELEASE_LANE
+    final Section lane; // SWITCH_FOR_LANE
+    final int xPos, yPos; // SWITCH, SWITCH_FOR_LANE
+    final int direction, otherDirection;
+
+    private Step(Op op, Section[] sections, Section section, int tiles, Rules.Region region, Section lane,
+            int xPos, int yPos, int direction, int otherDirection) {
+        this.op = op;
+        this.sections = sections;
+        this.section = section;
+        this.tiles = tiles;
+        this.region = region;
+        this.lane = lane;
+        this.xPos = xPos;
+        this.yPos = yPos;
+        this.direction = direction;
+        this.otherDirection = otherDirection;
+    }
+
+    static Step acquire(Section... sections) {
+        return new Step(Op.ACQUIRE, sections, null, 0, null, null, 0, 0, 0, 0);
+    }
+
+    static Step approach(Section section, int tiles) {
+        return new Step(Op.APPROACH, null, section, tiles, null, null, 0, 0, 0, 0);
+    }
+
+    static Step release(Section section) {
+        return new Step(Op.RELEASE, null, section, 0, null, null, 0, 0, 0, 0);
+    }
+
+    static Step takeLane(Rules.Region region) {
+        return new Step(Op.TAKE_LANE, null, null, 0, region, null, 0, 0, 0, 0);
+    }
+
+    static Step releaseLane(Rules.Region region) {
+        return new Step(Op.RELEASE_LANE, null, null, 0, region, null, 0, 0, 0, 0);
+    }
+
+    static Step setSwitch(int xPos, int yPos, int direction) {
+        return new Step(Op.SWITCH, null, null, 0, null, null, xPos, yPos, direction, 0);
+    }
+
+    static Step switchForLane(int xPos, int yPos, Section lane, int direction, int otherDirection) {
+        return new Step(Op.SWITCH_FOR_LANE, null, null, 0, null, lane, xPos, yPos, direction, otherDirection);
+    }
+
+    static Step station() {
+        return new Step(Op.STATION, null, null, 0, null, null, 0, 0, 0, 0);
+    }
+}
@@ -0,0 +1,213 @@
+package trainspotting;
+
+import TSim.map.TrackMap;
+import TSim.map.TrackMapParser;
+import TSim.sim.HeadlessSimulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Looks for the highest speeds the two trains of the lab can safely go at.
+ * The controller is run against the in-process simulator, as fast as it
+ * goes, for every combination of the speeds of train 1 and train 2 and the
+ * time spent at stations in a grid, and each run reports whether a train
+ * collided, derailed or otherwise failed, or the trains got nowhere, and how
+ * many station stops the trains made per minute of the simulation. The
+ * table of runs is printed followed by the safe maximum of each train for
+ * each dwell time: the highest speed at which it made no run fail with the
+ * other train going at that speed or slower. A run in which the simulator
+ * refused a command, such as reversing a train that still moves, says
+ * nothing about the speed being safe; such runs are counted apart and
+ * neither make nor break a maximum. The runs are deterministic, so a sweep
+ * always finds the same maximum.
+ *
+ * The runs are made in this JVM (see SimRun), each limiting the speed to
+ * that of its faster train, and spread over the cores by a fork/join pool,
+ * one at a time per worker.
+ *
+ * <pre>
+ * java -cp bin trainspotting.Sweep Lab1.map 300 1-25 1000,3000 [parallelism]
+ * </pre>
+ *
+ * runs each combination of speeds 1 to 25 and dwell times of 1 and 3
+ * seconds for 300 seconds of the simulation. Speeds and dwell times are
+ * given as a range or a comma separated list.
+ *
+ */
+
+public final class Sweep {
+
+    // One combination of the grid and how it went
+    static final class Run {
+        final int speed1, speed2;
+        final long dwellMillis;
+        SimRun.Result outcome; // null until made
+
+        Run(int speed1, int speed2, long dwellMillis) {
+            this.speed1 = speed1;
+            this.speed2 = speed2;
+            this.dwellMillis = dwellMillis;
+        }
+
+        boolean isSafe() {
+            return outcome != null && outcome.isSafe();
+        }
+
+        // The speed of the given train (1 or 2), or of the other one
+        int speed(int train) {
+            return train == 1 ? speed1 : speed2;
+        }
+
+        int otherSpeed(int train) {
+            return train == 1 ? speed2 : speed1;
+        }
+    }
+
+    private final SimRun simRun;
+    private final long[] dwells;
+    private final Run[] runs;
+
+    Sweep(String mapPath, TrackMap map, int seconds, int[] speeds, long[] dwells) {
+        simRun = new SimRun(mapPath, map, seconds);
+        this.dwells = dwells;
+        List<Run> grid = new ArrayList<Run>();
+        for (int speed1 : speeds)
+            for (int speed2 : speeds)
+                for (long dwell : dwells)
+                    grid.add(new Run(speed1, speed2, dwell));
+        runs = grid.toArray(new Run[grid.size()]);
+    }
+
+    // Splits the runs from lo to hi in halves until there is one left, which is made by the worker that gets it
+    private final class Part extends RecursiveAction {
+        private final int lo, hi;
+
+        Part(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute() {
+            if (hi - lo == 1) {
+                run(runs[lo]);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Part(lo, mid), new Part(mid, hi));
+        }
+    }
+
+    /**
+     * Makes all runs, at most parallelism at a time.
+     */
+    void sweep(int parallelism) {
+        if (runs.length == 0)
+            return;
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Part(0, runs.length));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Runs the controller as fast as it goes, letting the trains go at the speeds of the run
+    private void run(Run run) {
+        run.outcome = simRun.run(Fleet.pair(run.speed1, run.speed2), Math.max(run.speed1, run.speed2),
+                run.dwellMillis, HeadlessSimulator.Pace.FAST, SimClock.STEP_MILLIS);
+    }
+
+    /**
+     * Returns the highest speed of the given train (1 or 2) such that every
+     * run with the given dwell time, that train at that speed and the other
+     * one at that speed or slower was safe, or 0 if there is none. Runs that
+     * failed on a command are left out, and at least one run must be left.
+     */
+    int safeMaximum(int train, long dwellMillis) {
+        int safe = 0;
+        for (Run candidate : runs) {
+            int speed = candidate.speed(train);
+            if (candidate.dwellMillis != dwellMillis || speed <= safe)
+                continue;
+            boolean made = false, failed = false;
+            for (Run run : runs)
+                if (run.dwellMillis == dwellMillis && run.speed(train) == speed && run.otherSpeed(train) <= speed
+                        && !run.outcome.commandFailed) {
+                    made = true;
+                    failed |= !run.isSafe();
+                }
+            if (made && !failed)
+                safe = speed;
+        }
+        return safe;
+    }
+
+    // Returns how many runs with the given dwell time failed on a command
+    int commandFailures(long dwellMillis) {
+        int failures = 0;
+        for (Run run : runs)
+            if (run.dwellMillis == dwellMillis && run.outcome.commandFailed)
+                failures++;
+        return failures;
+    }
+
+    void print() {
+        System.out.println("speed1 speed2  dwell  stops/min  result");
+        for (Run run : runs)
+            System.out.println(String.format("%6d %6d %6d %10.1f  %s%s", run.speed1, run.speed2, run.dwellMillis,
+                    run.outcome.stopsPerMinute(), run.outcome.commandFailed ? "command failed: " : "",
+                    run.outcome.result));
+        for (long dwell : dwells) {
+            int failures = commandFailures(dwell);
+            System.out.println("safe maximum with dwell " + dwell + " ms: train 1 " + safeMaximum(1, dwell)
+                    + ", train 2 " + safeMaximum(2, dwell)
+                    + (failures > 0 ? ", leaving out " + failures + " runs that failed on a command" : ""));
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            Sweep sweep = new Sweep(args[0], TrackMapParser.load(args[0]), Integer.parseInt(args[1]),
+                    parseInts(args[2]), parseLongs(args[3]));
+            int parallelism = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+            sweep.sweep(parallelism);
+            sweep.print();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.err.println("Sweep expects 4-5 arguments: Lab1.map <SecondsPerRun> <Speeds> <DwellMillis> "
+                    + "[Parallelism], speeds and dwell times as a range (1-25) or a list (5,10,15)");
+        } catch (NumberFormatException e) {
+            System.err.println("not a number: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    // Parses "from-to" or "a,b,c"
+    private static long[] parseLongs(String values) {
+        if (values.matches("\\d+-\\d+")) {
+            int dash = values.indexOf('-');
+            long from = Long.parseLong(values.substring(0, dash)), to = Long.parseLong(values.substring(dash + 1));
+            long[] range = new long[(int) Math.max(0, to - from + 1)];
+            for (int i = 0; i < range.length; i++)
+                range[i] = from + i;
+            return range;
+        }
+        String[] parts = values.split(",");
+        long[] list = new long[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            list[i] = Long.parseLong(parts[i].trim());
+        return list;
+    }
+
+    private static int[] parseInts(String values) {
+        long[] longs = parseLongs(values);
+        int[] ints = new int[longs.length];
+        for (int i = 0; i < longs.length; i++)
+            ints[i] = (int) longs[i];
+        return ints;
+    }
+}
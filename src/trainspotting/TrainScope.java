@@ -0,0 +1,118 @@
+package trainspotting;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the trains of a controller, one thread per train, and shuts them all
+ * down together: once one train fails, every other train is interrupted, and
+ * join returns when all of them have stopped.
+ *
+ * Trains run on virtual threads when the JVM has them (Java 21 and later)
+ * and were asked for, and on platform threads otherwise.
+ *
+ */
+
+final class TrainScope {
+
+    /* Stack size of the platform threads used in place of virtual threads. */
+    private static final long SMALL_STACK_SIZE = 256 * 1024;
+
+    private final ThreadFactory factory;
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile Throwable failure;
+    private volatile boolean shutdown;
+
+    /*
+     * Creates a scope starting trains on virtual threads if virtual is set
+     * and the JVM supports them, and on platform threads otherwise.
+     */
+    TrainScope(boolean virtual) {
+        ThreadFactory f = virtual ? virtualThreadFactory() : null;
+        if (virtual && f == null) {
+            System.err.println("virtual threads are not available, running trains on platform threads");
+            f = platformThreadFactory(SMALL_STACK_SIZE);
+        }
+        factory = f != null ? f : platformThreadFactory(0);
+    }
+
+    /*
+     * Looks Thread.ofVirtual() up reflectively so that the code still
+     * compiles and runs on Java 17; returns null if it is missing.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object b = ofVirtual.invoke(null);
+            b = builder.getMethod("name", String.class, long.class).invoke(b, "train-", 1L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(b);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreadFactory(final long stackSize) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(null, r, "train-" + count.incrementAndGet(), stackSize);
+            }
+        };
+    }
+
+    /**
+     * Starts running the train in a new thread.
+     */
+    synchronized void fork(Runnable train) {
+        if (shutdown)
+            return;
+        Thread t = factory.newThread(train);
+        threads.add(t);
+        t.start();
+    }
+
+    /**
+     * Records why a train stopped and shuts the other trains down. Only the
+     * first failure is kept.
+     */
+    void fail(Throwable cause) {
+        synchronized (this) {
+            if (failure != null)
+                return;
+            failure = cause;
+        }
+        cause.printStackTrace();
+        shutdown();
+    }
+
+    /**
+     * Interrupts every train.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        for (Thread t : threads)
+            t.interrupt();
+    }
+
+    boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Waits until every train has stopped and returns the first failure, or
+     * null if none failed.
+     */
+    Throwable join() throws InterruptedException {
+        List<Thread> started;
+        synchronized (this) {
+            started = new ArrayList<Thread>(threads);
+        }
+        for (Thread t : started)
+            t.join();
+        return failure;
+    }
+}
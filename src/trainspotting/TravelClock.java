@@ -0,0 +1,62 @@
+package trainspotting;
+
+import TSim.map.TrackMap;
+
+/**
+ * Learns how long trains take to travel along the track. Whenever a train
+ * passes two sensors joined by a single segment of the map without changing
+ * its speed in between, the time it took, times its speed, divided by the
+ * length of the segment is averaged into the time per tile at speed 1. The
+ * time a train at speed v needs for n tiles is then n times that, divided by v.
+ *
+ * This is measured rather than computed from the simulator's constants, so it
+ * holds for tsim at any --speed as well as for the headless simulator.
+ *
+ */
+
+final class TravelClock {
+
+    private static final double WEIGHT = 0.2; // of a new sample in the moving average
+
+    private final TrackMap map;
+    private double nanosPerTile; // at speed 1, 0 until measured
+
+    TravelClock(TrackMap map) {
+        this.map = map;
+    }
+
+    /**
+     * Records that a train at the given speed moved from the sensor on one
+     * tile to the sensor on another in the given time. Ignored unless the
+     * sensors are the two ends of one segment.
+     */
+    void passed(int fromTile, int toTile, long nanos, int speed) {
+        int tiles = distance(fromTile, toTile);
+        if (tiles <= 0 || speed == 0 || nanos <= 0)
+            return;
+        double sample = (double) nanos * Math.abs(speed) / tiles;
+        synchronized (this) {
+            nanosPerTile = nanosPerTile == 0 ? sample : nanosPerTile + WEIGHT * (sample - nanosPerTile);
+        }
+    }
+
+    // The length of the segment from one tile to the other, or 0 if they are not its ends
+    private int distance(int fromTile, int toTile) {
+        for (int side = 0; side < 4; side++)
+            if (map.segmentEnd(fromTile, side) == toTile)
+                return map.segmentLength(fromTile, side);
+        return 0;
+    }
+
+    /**
+     * Returns the time a train at the given speed is expected to need for the
+     * given number of tiles, or 0 while nothing has been measured.
+     */
+    synchronized long nanos(double tiles, int speed) {
+        return speed == 0 ? 0 : (long) (tiles * nanosPerTile / Math.abs(speed));
+    }
+
+    synchronized boolean isCalibrated() {
+        return nanosPerTile > 0;
+    }
+}